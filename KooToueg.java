@@ -1,18 +1,51 @@
 import static java.lang.Math.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.zip.CRC32;
 import java.io.*;
 import java.nio.ByteBuffer; 
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
-
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import com.sun.nio.sctp.MessageInfo;
 import com.sun.nio.sctp.SctpChannel;
 import com.sun.nio.sctp.SctpServerChannel;
+import com.sun.nio.sctp.SctpStandardSocketOptions;
 
 /******************************************************************************/
 class Application implements Runnable {
@@ -75,10 +108,14 @@ enum MessageType {
     VECTOR_CLOCK,       
     VECTOR_CLOCK_RESP,
     VECTOR_CLOCK_CHECK,       
+    VECTOR_CLOCK_PARTIAL,   // Converge cast of merged clocks up the gather tree
+    READY,              // This node is up and listening
+    PROTOCOL_DONE,      // An instance and every instance before it have finished
+    RECHECK,            // Gather the clocks of an instance again, only put in our own queue
 }
 
 /******************************************************************************/
-class Message implements java.io.Serializable{
+class Message {
 
     // Variables for the messages being passes
     int[] clock;
@@ -89,9 +126,13 @@ class Message implements java.io.Serializable{
     String [] crList;       // Array or "c" or "r" 
     int [] crNodes;         // Array of nodes to execute protocol
     int crIndex;
+    int instance;           // Checkpoint or recovery instance, the crIndex that started it
 
     int[] llr;
     int[] lls;
+
+    int[] clockDiff;        // Changed clock entries as index, value pairs, instead of clock
+    int[] clockDiag;        // Own clock entry of each node in a gather subtree, -1 if absent
 }
 
 /******************************************************************************/
@@ -103,393 +144,2838 @@ class Checkpoint {
     int[] llr;
     int[] fls;
     int[] lls;
+    int[] delivered;    // Last label delivered from each node, only kept with the message log
 }
 
 /******************************************************************************/
-class ServerHandler implements Runnable{
-
-    Protocol p;
-    SctpChannel sc;
-
-    ServerHandler(Protocol p, SctpChannel sc) {
-        this.p = p;
-        this.sc = sc;
-    }
+class Options {
 
-    public void run() {
-        try {
-            // Listen for messages from other nodes, pass them to the Protocol class
-            byte[] data = new byte[1024];
-            ByteBuffer buf = ByteBuffer.wrap(data);
+    // Runtime options, set with -D on the java command line
 
-            sc.receive(buf, null, null);
+    // Batch SIMPLE messages to the same destination sent within this many msec, 0 disables
+    static final int batchWindow = Integer.getInteger("kt.batchWindow", 0);
+    // Maximum number of SIMPLE messages packed into one batch
+    static final int batchMax = Integer.getInteger("kt.batchMax", 32);
 
-            ByteArrayInputStream bytesIn = new ByteArrayInputStream(data);
-            ObjectInputStream ois = new ObjectInputStream(bytesIn);
-            Message m = (Message)ois.readObject();
-            ois.close();
+    // Send only the vector clock entries that changed since the last message to each peer
+    static final boolean diffClock = Boolean.getBoolean("kt.diffClock");
 
-            // Echo back data to ensure FIFO
-            MessageInfo messageInfo = MessageInfo.createOutgoing(null, 0);
-            sc.send(buf, messageInfo);
+    // Pass the protocol token on as soon as an instance starts, so instances of the same kind overlap
+    // A checkpoint and a recovery never do, the token is passed once every instance before has finished
+    static final boolean concurrent = Boolean.getBoolean("kt.concurrent");
 
-            sc.close();
+    // Gather and check the vector clocks over a spanning tree instead of at the initiator
+    // Overlapping instances use the flat gather
+    static final boolean treeGather = Boolean.getBoolean("kt.treeGather") && !concurrent;
 
-            p.putQueue(m);
+    // Directory for the durable checkpoint log, unset keeps checkpoints in memory only
+    static final String checkpointDir = System.getProperty("kt.checkpointDir");
+    // When to sync the checkpoint log, "commit", "never" or a period in msec
+    static final String fsync = System.getProperty("kt.fsync", "100");
+    // Number of delta checkpoints written between full ones
+    static final int fullEvery = Integer.getInteger("kt.fullEvery", 16);
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-}
+    // Keep a log of the SIMPLE messages we send, a recovering node keeps its sends and
+    // gets its lost messages replayed instead of its neighbors rolling back
+    static final boolean messageLog = Boolean.getBoolean("kt.messageLog");
 
-/******************************************************************************/
-class Server implements Runnable{
+    // Simulated network used by the Simulator, delays in usec
+    static final int simLatency = Integer.getInteger("kt.simLatency", 0);
+    static final int simJitter = Integer.getInteger("kt.simJitter", 0);
+    // Probability of dropping a SIMPLE message, control messages are never dropped
+    static final double simLoss = Double.parseDouble(System.getProperty("kt.simLoss", "0"));
+    static final long simSeed = Long.getLong("kt.simSeed", 1);
 
-    private Protocol p;
-    private int port;
-    private SctpServerChannel ssc;
-    private SctpChannel sc;
-    private volatile Boolean closeFlag;
+    // Print the metrics of every node as a JSON line this often in msec, 0 disables
+    static final int metricsPeriod = Integer.getInteger("kt.metricsPeriod", 0);
 
-    Server(Protocol p, int port) {
-        this.p = p;
-        this.port = port;
-        closeFlag = false;
-    }
+    // Directory for the binary event trace, unset prints the events to the console instead
+    static final String traceDir = System.getProperty("kt.traceDir");
+    // Events kept in each node's trace ring
+    static final int traceSize = Integer.getInteger("kt.traceSize", 1 << 16);
 
-    public void closeServer() {
-        closeFlag = true;
-    }
+    // Slots in each node's receive ring, rounded up to a power of two
+    static final int ringSize = Integer.getInteger("kt.ringSize", 1 << 12);
 
-    public void run() {
-        System.out.println("Server running "+port);
+    // How node threads are run, "thread", "pool" or "virtual", see TaskRunner
+    static final String executor = System.getProperty("kt.executor", "thread");
+}
 
+/******************************************************************************/
+class Config {
+
+    // A config/*.txt file, the format scripts/launcher.py reads
+    // n cr_n instDelay sendDelay messages, then one line per node: id host port,
+    // one line per node: id neighbors..., one line per instance: (c,node) or (r,node)
+    // Everything after a # is a comment
+
+    int n;
+    int cr_n;
+    int instDelay;
+    int sendDelay;
+    int messages;
+    String[] hosts;
+    int[] ports;
+    int[][] neighbors;
+    String[] crList;
+    int[] crNodes;
+
+    static Config parse(String path) throws IOException {
+
+        ArrayList<String[]> lines = new ArrayList<String[]>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
         try {
-            ssc = SctpServerChannel.open();
-            InetSocketAddress serverAddr = new InetSocketAddress(port);
-            ssc.bind(serverAddr);            
-        } catch (Exception e) {
-            e.printStackTrace();
+            String line;
+            while((line = in.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if(comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if(line.length() > 0) {
+                    lines.add(line.split("\\s+"));
+                }
+            }
+        } finally {
+            in.close();
         }
 
-        // Listen for the super thread to close the server
-        Thread closeListener = new Thread() {
-            public void run(){
-                while(true) {
-                    if(closeFlag) {
-                        try {
-                            ssc.close();
-                            System.out.println("Closed ssc");
-                        } catch(Exception e) {
-                            e.printStackTrace();
-                        }
-                        return;
-                    }
-                }
+        Config c = new Config();
+
+        // The five header numbers may span lines
+        int[] header = new int[5];
+        int h = 0;
+        int l = 0;
+        while(h < header.length) {
+            if(l == lines.size()) {
+                throw new IOException(path+": missing header");
             }
-        };
-        closeListener.start();
+            String[] words = lines.get(l++);
+            for(int w = 0; w < words.length && h < header.length; w++) {
+                header[h++] = Integer.parseInt(words[w]);
+            }
+        }
+        c.n = header[0];
+        c.cr_n = header[1];
+        c.instDelay = header[2];
+        c.sendDelay = header[3];
+        c.messages = header[4];
+
+        if(lines.size() - l < 2 * c.n + c.cr_n) {
+            throw new IOException(path+": expected "+c.n+" nodes, "+c.n+" neighbor lists and "+c.cr_n+" instances");
+        }
 
-        while(true) {
+        c.hosts = new String[c.n];
+        c.ports = new int[c.n];
+        for(int i = 0; i < c.n; i++) {
+            String[] words = lines.get(l++);
+            c.hosts[i] = words[1];
+            c.ports[i] = Integer.parseInt(words[2]);
+        }
 
-            try {
+        c.neighbors = new int[c.n][];
+        for(int i = 0; i < c.n; i++) {
+            String[] words = lines.get(l++);
+            c.neighbors[i] = new int[words.length - 1];
+            for(int j = 1; j < words.length; j++) {
+                c.neighbors[i][j - 1] = Integer.parseInt(words[j]);
+            }
+        }
 
-                sc = ssc.accept();
+        c.crList = new String[c.cr_n];
+        c.crNodes = new int[c.cr_n];
+        for(int i = 0; i < c.cr_n; i++) {
+            String[] cr = lines.get(l++)[0].replace("(", "").replace(")", "").split(",");
+            c.crList[i] = cr[0].trim();
+            c.crNodes[i] = Integer.parseInt(cr[1].trim());
+        }
 
-                if(sc == null) {
-                    return;
-                }
+        return c;
+    }
 
-                // Start a ServerHandler thread
-                ServerHandler serverHandler = new ServerHandler(p, sc);
-                Thread serverHandler_thread = new Thread(serverHandler);
-                serverHandler_thread.start();
-            
-            } catch (Exception e) {
-                System.out.println("Closing server");
-                return;
-            }
+    // The command line scripts/launcher.py would build for node n_i
+    String[] toArgs(int n_i) {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(""+n);
+        args.add(""+n_i);
+        args.add(""+cr_n);
+        args.add(""+instDelay);
+        args.add(""+sendDelay);
+        args.add(""+messages);
+        for(int i = 0; i < n; i++) {
+            args.add(hosts[i]);
+            args.add(""+ports[i]);
         }
+        args.add(""+neighbors[n_i].length);
+        for(int i = 0; i < neighbors[n_i].length; i++) {
+            args.add(""+neighbors[n_i][i]);
+        }
+        for(int i = 0; i < cr_n; i++) {
+            args.add(crList[i]);
+        }
+        for(int i = 0; i < cr_n; i++) {
+            args.add(""+crNodes[i]);
+        }
+        return args.toArray(new String[args.size()]);
     }
 }
 
 /******************************************************************************/
-class ProtocolPasser implements Runnable{
-
-    private Protocol p;
-    private int dest;
-    private String[] crList;
-    private int[] crNodes;
-    private int crIndex;
-    private int delay;
-
-    ProtocolPasser(Protocol p, int dest, String [] crList, int [] crNodes, int crIndex, int delay) {
-        this.p = p;
-        this.dest = dest;
-        this.crList = crList;
-        this.crNodes = crNodes;
-        this.crIndex = crIndex;
-        this.delay = delay;
+class TaskRunner {
+
+    // Runs the node's threads, chosen with -Dkt.executor
+    //  thread   a new platform thread for every task
+    //  pool     a shared cached pool, idle threads are reused
+    //  virtual  a virtual thread for every task, needs Java 21, falls back to pool
+
+    private static ExecutorService shared;
+    private static Boolean created = false;
+
+    private static ExecutorService pool() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
-    public void run() {
+    // The shared executor, null when every task gets its own platform thread
+    static synchronized ExecutorService shared() {
+        if(created) {
+            return shared;
+        }
+        created = true;
 
-        p.delay(p.nextExp(delay));
+        if(Options.executor.equals("pool")) {
+            shared = pool();
+        } else if(Options.executor.equals("virtual")) {
+            // Looked up at run time so the code still builds on older JDKs
+            try {
+                shared = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                System.out.println("Virtual threads need Java 21, using a thread pool");
+                shared = pool();
+            }
+        }
+        return shared;
+    }
 
-        Message m = new Message();
-        m.crList = crList;
-        m.crNodes = crNodes;
-        m.crIndex = crIndex;
-        m.origin = p.n_i;
-        m.type = MessageType.PROTOCOL;
+    // Start a task, the future completes when it returns
+    static Future<?> start(Runnable r, Boolean daemon) {
+        ExecutorService e = shared();
+        if(e != null) {
+            return e.submit(r);
+        }
 
-        p.sendMessage(dest, m, false);
+        FutureTask<Object> f = new FutureTask<Object>(r, null);
+        Thread t = new Thread(f);
+        t.setDaemon(daemon);
+        t.start();
+        return f;
     }
 }
 
 /******************************************************************************/
-class Protocol implements Runnable{
+class CheckpointStore implements Runnable{
+
+    // Append only log of committed checkpoints, memory mapped
+    // Record: length | crc32 | payload, a zero length marks the end of the log
+    // Full payload:  FULL | label | clock[n] | llr[n] | fls[n] | lls[n]
+    // Delta payload: DELTA | label | count | count pairs of (slot, value)
+    // A slot indexes clock, llr, fls and lls laid end to end, only entries that
+    // changed since the previous record are in a delta
+
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+
+    private int n;
+    private int fsync;              // -1 never, 0 on every commit, otherwise msec between syncs
+    private int fullEvery;          // Write a full record after this many deltas
+    private FileChannel fc;
+    private volatile MappedByteBuffer map;
+    private CRC32 crc;
+    private byte[] record;
+    private volatile Boolean dirty;
+
+    private int[] last;             // State as of the last record, slots laid end to end
+    private int sinceFull;
+
+    private long bytesWritten;
+    private long bytesFull;         // What the same commits cost as full records
+    private int fullRecords;
+    private int deltaRecords;
+
+    CheckpointStore(String dir, int n_i, int n, String fsync, int fullEvery) throws IOException {
+        this.n = n;
+        this.fullEvery = fullEvery;
 
-    public int n;
-    public int n_i;
-    private int[] neighbors;
-    private String[] hosts;
-    private int[] ports;
-    private int crDelay;
+        if(fsync.equals("never")) {
+            this.fsync = -1;
+        } else if(fsync.equals("commit")) {
+            this.fsync = 0;
+        } else {
+            this.fsync = Integer.parseInt(fsync);
+        }
 
-    private Boolean[] complete;
-    private Semaphore sending;
+        File file = new File(dir, "checkpoint_"+n_i+".log");
+        fc = new RandomAccessFile(file, "rw").getChannel();
+        map = fc.map(FileChannel.MapMode.READ_WRITE, 0, max(fc.size(), INITIAL_SIZE));
 
-    private volatile int[] clock;
-    private volatile int[] llr;          // Last label received
-    private volatile int[] fls;          // First label sent
-    private volatile int[] lls;          // Last label sent
-    private volatile int[] templls;      // Last label sent, temporary before taking CP
-    private volatile int label;
+        crc = new CRC32();
+        record = new byte[4 * (2 + 4 * n)];
+        dirty = false;
 
-    private Checkpoint tentative;
-    private Checkpoint perm;
+        last = new int[4 * n];
+        sinceFull = fullEvery;      // First record is always full
 
-    private volatile ConcurrentLinkedQueue<Message> receiveQueue;
-    private volatile ConcurrentLinkedQueue<Message> tempreceiveQueue;
+        // Periodic sync runs in the background so commits only pay for the copy
+        if(this.fsync > 0) {
+            Thread sync_thread = new Thread(this);
+            sync_thread.setDaemon(true);
+            sync_thread.start();
+        }
+    }
 
-    public int[][] clockMatrix;
-    public Boolean[] vectorReceived;
+    private static int[] slots(Checkpoint cp, int n, int[] out) {
+        for(int i = 0; i < n; i++) {
+            out[i] = cp.clock[i];
+            out[n + i] = cp.llr[i];
+            out[2 * n + i] = cp.fls[i];
+            out[3 * n + i] = cp.lls[i];
+        }
+        return out;
+    }
 
-    Protocol(int n, int n_i, int[] neighbors, String[] hosts, int[] ports, int crDelay) {
-        this.n = n;
-        this.n_i = n_i;
-        this.neighbors= neighbors;
-        this.hosts = hosts;
-        this.ports = ports;
-        this.crDelay = crDelay;
+    // Rebuild the checkpoint from the latest full record and the deltas after it
+    // Leaves the log positioned after the last valid record
+    // Returns false if the log holds no checkpoint
+    public synchronized Boolean load(Checkpoint cp) {
+        Boolean found = false;
+        int label = -1;
+        map.position(0);
+
+        while(map.remaining() >= 8) {
+            int start = map.position();
+            int length = map.getInt();
+            int sum = map.getInt();
+
+            if(length <= 0 || length > record.length || map.remaining() < length) {
+                map.position(start);
+                break;
+            }
 
-        complete = new Boolean[n];
-        for(int i = 0; i < n; i++) {
-            complete[i] = false;
+            map.get(record, 0, length);
+            crc.reset();
+            crc.update(record, 0, length);
+            if((int)crc.getValue() != sum) {
+                // Torn write from a crash, everything after it is garbage
+                map.position(start);
+                break;
+            }
+
+            ByteBuffer rec = ByteBuffer.wrap(record, 0, length);
+            int kind = rec.getInt();
+            if(kind == FULL) {
+                label = rec.getInt();
+                for(int i = 0; i < last.length; i++) {
+                    last[i] = rec.getInt();
+                }
+                found = true;
+                sinceFull = 0;
+            } else if(found) {
+                label = rec.getInt();
+                int count = rec.getInt();
+                for(int i = 0; i < count; i++) {
+                    int slot = rec.getInt();
+                    last[slot] = rec.getInt();
+                }
+                sinceFull++;
+            }
         }
-        sending = new Semaphore(1, true);
 
-        // Initialize vector clock
-        clock = new int[n];
-        for(int i = 0; i < n; i++) {
-            clock[i] = 0;
+        // Clear the end marker so a torn tail is never read back
+        if(map.remaining() >= 4) {
+            map.putInt(map.position(), 0);
         }
 
-        // Initialize LLR
-        llr = new int[n];
-        for(int i = 0; i < n; i++) {
-            llr[i] = -1;
+        if(!found) {
+            sinceFull = fullEvery;
+            return false;
         }
 
-        // Initialize FLS
-        fls = new int[n];
+        cp.label = label;
         for(int i = 0; i < n; i++) {
-            fls[i] = -1;
+            cp.clock[i] = last[i];
+            cp.llr[i] = last[n + i];
+            cp.fls[i] = last[2 * n + i];
+            cp.lls[i] = last[3 * n + i];
         }
+        return true;
+    }
 
-        // Initialize LLS
-        lls = new int[n];
-        for(int i = 0; i < n; i++) {
-            lls[i] = -1;
+    public synchronized void append(Checkpoint cp) throws IOException {
+        ByteBuffer rec = ByteBuffer.wrap(record);
+
+        // Count the changed slots, a delta bigger than a full record is not worth it
+        int count = 0;
+        if(sinceFull < fullEvery) {
+            for(int i = 0; i < n; i++) {
+                if(last[i] != cp.clock[i]) count++;
+                if(last[n + i] != cp.llr[i]) count++;
+                if(last[2 * n + i] != cp.fls[i]) count++;
+                if(last[3 * n + i] != cp.lls[i]) count++;
+            }
         }
 
-        // Initialize temporary LLS
-        templls = new int[n];
-        for(int i = 0; i < n; i++) {
-            templls[i] = -1;
+        if(sinceFull >= fullEvery || 3 + 2 * count >= 2 + 4 * n) {
+            rec.putInt(FULL);
+            rec.putInt(cp.label);
+            slots(cp, n, last);
+            for(int i = 0; i < last.length; i++) {
+                rec.putInt(last[i]);
+            }
+            sinceFull = 0;
+            fullRecords++;
+        } else {
+            rec.putInt(DELTA);
+            rec.putInt(cp.label);
+            rec.putInt(count);
+            int[][] arrays = {cp.clock, cp.llr, cp.fls, cp.lls};
+            for(int a = 0; a < arrays.length; a++) {
+                for(int i = 0; i < n; i++) {
+                    int slot = a * n + i;
+                    if(last[slot] != arrays[a][i]) {
+                        last[slot] = arrays[a][i];
+                        rec.putInt(slot);
+                        rec.putInt(last[slot]);
+                    }
+                }
+            }
+            sinceFull++;
+            deltaRecords++;
         }
 
-        label = -1;
+        int length = rec.position();
+        crc.reset();
+        crc.update(record, 0, length);
 
-        // Initialize checkpoints
-        tentative = new Checkpoint();
-        tentative.llr = new int[n];
-        tentative.fls = new int[n];
-        tentative.lls = new int[n];
-        tentative.clock = new int[n];
+        // Grow the mapping when the record and the end marker do not fit
+        if(map.remaining() < length + 12) {
+            int position = map.position();
+            map = fc.map(FileChannel.MapMode.READ_WRITE, 0, 2L * map.capacity());
+            map.position(position);
+        }
 
-        perm = new Checkpoint();
-        perm.llr = new int[n];
-        perm.fls = new int[n];
-        perm.lls = new int[n];
-        perm.clock = new int[n];
+        // Write the body first and the length last, so a torn record never looks valid
+        int start = map.position();
+        map.putInt(start + 4, (int)crc.getValue());
+        map.put(start + 8, record, 0, length);
+        map.putInt(start + 8 + length, 0);
+        map.putInt(start, length);
+        map.position(start + 8 + length);
 
-        receiveQueue = new ConcurrentLinkedQueue<Message>();  // Server produces messages, protocol consumes
-        tempreceiveQueue = new ConcurrentLinkedQueue<Message>();  // Server produces messages, protocol consumes
+        bytesWritten += 8 + length;
+        bytesFull += 8 + record.length;
 
-        clockMatrix = new int[n][n];
-        vectorReceived = new Boolean[n];
+        if(fsync == 0) {
+            map.force();
+        } else {
+            dirty = true;
+        }
     }
 
-    public Boolean checkCGS(int[][] clocks) {
-
-        // return true if vector clocks form CGS, false if not
-        for(int i=0;i<clocks.length;i++) {
-            for(int j = 0;j < clocks.length;j++) {
-                if(clocks[i][i] < clocks[j][i]) {
+    public synchronized String stats() {
+        return fullRecords+" full and "+deltaRecords+" delta records, "+bytesWritten+" bytes written, "+bytesFull+" as full checkpoints";
+    }
 
-                    System.out.println("Matrix clock:");
-                    System.out.println(Arrays.deepToString(clocks));
-                    System.out.println(Arrays.toString(clock));
+    public void run() {
+        while(true) {
+            try {
+                Thread.sleep(fsync);
+            } catch (InterruptedException e) {
+                return;
+            }
 
-                    System.out.println("i = "+i+"j = "+j);
-                    return false;
-                }
+            if(dirty) {
+                dirty = false;
+                map.force();
             }
         }
-        return true;
     }
+}
 
-    // Return an exponential random variable from mean lambda
-    public double nextExp(int lambda) {
-        return (-lambda)*Math.log(1-Math.random())/Math.log(2);
-    }
+/******************************************************************************/
+class BufferPool {
 
-    public void delay(double msec) {
+    // Direct buffers shared by the send and receive paths, in power of two size classes
+    // take() hands out a cleared buffer of at least the size asked for, give() returns it
+    // Buffers larger than the biggest class are not kept
 
-        try {
-            Thread.sleep((long)msec);
-        } catch(Exception e) {
-            e.printStackTrace();
+    private static final int MIN_SHIFT = 8;     // 256 bytes
+    private static final int MAX_SHIFT = 20;    // 1 MB
+    private static final int KEEP = 256;        // Free buffers kept in each class
+
+    private static final ArrayList<ArrayBlockingQueue<ByteBuffer>> free = new ArrayList<ArrayBlockingQueue<ByteBuffer>>();
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+
+    static {
+        for(int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            free.add(new ArrayBlockingQueue<ByteBuffer>(KEEP));
         }
     }
 
-    // Method to serialize messages
-    private byte[] serializeObject(Message m) throws IOException{
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bytesOut);
-        oos.writeObject(m);
-        oos.flush();
-        byte[] bytes = bytesOut.toByteArray();
-        bytesOut.close();
-        oos.close();
-        return bytes;
+    // -1 if the size is above the biggest class
+    private static int sizeClass(int size) {
+        int shift = max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
     }
 
+    static ByteBuffer take(int size) {
+        int c = sizeClass(size);
+        if(c == -1) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
 
-    // Make sure our operations on the vector clock are synchronized
-    private synchronized int[] incrementClock(int i) {
-        clock[i] = clock[i] + 1;
-        return clock;
+        ByteBuffer buf = free.get(c).poll();
+        if(buf == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        reused.incrementAndGet();
+        buf.clear();
+        return buf;
     }
 
-    private void updateLLR(int origin, int label, Boolean clear) {
-        if(clear) {
-            llr[origin] = -1;
-        } else {
-            llr[origin] = label;
+    // Only buffers from take(), never a duplicate or slice of one
+    static void give(ByteBuffer buf) {
+        int c = sizeClass(buf.capacity());
+        if(c == -1 || !buf.isDirect() || buf.capacity() != 1 << (c + MIN_SHIFT)) {
+            return;
         }
+        free.get(c).offer(buf);
     }
 
-    private void updateFLS(int dest, int label, Boolean clear) {
-        if(clear) {
-            fls[dest] = -1;
-        } else if(fls[dest] == -1) {
-            fls[dest] = label;
-        }
+    static String stats() {
+        return allocated.get()+" buffers allocated, "+reused.get()+" reused";
     }
+}
 
-    private void updateTempLLS(int dest, int label) {
-        templls[dest] = label;
+/******************************************************************************/
+class MessageCodec {
+
+    // Wire format, all integers are varints, signed ones zigzag encoded
+    // version | length | type | origin | label | crIndex | instance | flags
+    //     | clock | llr | lls | crList | crNodes | clockDiff | clockDiag
+    // flags has a bit for each of the optional fields after it that is present
+    // A batch frame is version | length | BATCH | count | count message bodies without the header
+    // length is a fixed 4 bytes, the number of bytes after it, so a receiver can size its buffer
+    // from the first piece of a frame that arrives in several
+    static final int VERSION = 3;
+    static final int HEADER = 5;
+    static final int BATCH_HEADER = HEADER + 1 + 5;
+    static final int MAX_BATCH = 1024;      // Batches are cut at this size, a single message can be any size
+
+    private static final int BATCH = 0x7F;
+
+    private static final int HAS_CLOCK = 0x01;
+    private static final int HAS_LLR = 0x02;
+    private static final int HAS_LLS = 0x04;
+    private static final int HAS_CRLIST = 0x08;
+    private static final int HAS_CRNODES = 0x10;
+    private static final int HAS_CLOCKDIFF = 0x20;
+    private static final int HAS_CLOCKDIAG = 0x40;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    // Upper bound on the encoded size, used to size buffers
+    static int maxSize(Message m) {
+        int size = HEADER + 1 + 5 * 5 + 1;
+        size += arrayMax(m.clock);
+        size += arrayMax(m.llr);
+        size += arrayMax(m.lls);
+        size += arrayMax(m.crNodes);
+        size += arrayMax(m.clockDiff);
+        size += arrayMax(m.clockDiag);
+        if(m.crList != null) {
+            size += 5;
+            for(int i = 0; i < m.crList.length; i++) {
+                size += 5 + 3 * m.crList[i].length();
+            }
+        }
+        return size;
     }
 
-    private void commitCheckpoint() {
+    private static int arrayMax(int[] a) {
+        return (a == null) ? 0 : 5 + 5 * a.length;
+    }
 
-        // Commit the temporary checkpoint
-        perm.label = tentative.label;
-        for(int i = 0; i < n; i++) {
-            perm.clock[i] = tentative.clock[i];
-            perm.llr[i] = tentative.llr[i];
-            perm.fls[i] = tentative.fls[i];
-        }
+    static void encode(Message m, ByteBuffer buf) {
+        int start = buf.position();
+        putHeader(buf);
+        encodeBody(m, buf);
+        putLength(buf, start);
+    }
 
-        // Commit the LLS
-        for(int i = 0; i < n; i++) {
-            lls[i] = tentative.lls[i];
-            templls[i] = -1;
+    static void encodeBatch(ArrayList<Message> batch, ByteBuffer buf) {
+        int start = buf.position();
+        putHeader(buf);
+        buf.put((byte)BATCH);
+        putVarint(buf, batch.size());
+        for(int i = 0; i < batch.size(); i++) {
+            encodeBody(batch.get(i), buf);
         }
-
-        System.out.println("Checkpoint:");
-        System.out.println(Arrays.toString(perm.clock));
+        putLength(buf, start);
     }
 
-    private void rollback() {
-        label = perm.label;
+    // The length is filled in once the body is written
+    private static void putHeader(ByteBuffer buf) {
+        buf.put((byte)VERSION);
+        buf.putInt(0);
+    }
 
-        for(int i = 0; i < n; i++) {
-            llr[i] = -1;
-            fls[i] = -1;
-            templls[i] = -1;
-            clock[i] = perm.clock[i];
+    private static void putLength(ByteBuffer buf, int start) {
+        buf.putInt(start + 1, buf.position() - start - HEADER);
+    }
 
+    // Size of the whole frame from its header, buf must hold at least HEADER bytes
+    // Frames bigger than max are rejected before anything is allocated for them
+    static int frameSize(ByteBuffer buf, int max) throws IOException {
+        int version = buf.get(buf.position());
+        if(version != VERSION) {
+            throw new IOException("Unsupported message version "+version);
         }
-
-        System.out.println("Recovery:");
-        System.out.println(Arrays.toString(clock));
+        int length = buf.getInt(buf.position() + 1);
+        if(length < 0 || length > max - HEADER) {
+            throw new IOException("Bad frame length "+length);
+        }
+        return HEADER + length;
     }
 
-    private synchronized void mergeClock(int[] clock) {
-        // Merge the give clock value with our own clock
+    // Largest frame a node sends with n nodes and the given number of instances
+    // A message carries at most n entries in each clock array and n pairs in clockDiff,
+    // batches are cut at MAX_BATCH unless they hold a single message, doubled for headroom
+    static int maxFrame(int n, int instances) {
+        Message m = new Message();
+        m.clock = new int[n];
+        m.llr = new int[n];
+        m.lls = new int[n];
+        m.clockDiag = new int[n];
+        m.clockDiff = new int[2 * n];
+        m.crNodes = new int[instances];
+        m.crList = new String[instances];
+        Arrays.fill(m.crList, "c");
+        return 2 * max(MAX_BATCH, maxSize(m));
+    }
 
-        for(int i = 0; i < n; i++) {
-            if(this.clock[i] < clock[i]) {
-                this.clock[i] = clock[i];
+    private static void encodeBody(Message m, ByteBuffer buf) {
+        int flags = 0;
+        if(m.clock != null) flags |= HAS_CLOCK;
+        if(m.llr != null) flags |= HAS_LLR;
+        if(m.lls != null) flags |= HAS_LLS;
+        if(m.crList != null) flags |= HAS_CRLIST;
+        if(m.crNodes != null) flags |= HAS_CRNODES;
+        if(m.clockDiff != null) flags |= HAS_CLOCKDIFF;
+        if(m.clockDiag != null) flags |= HAS_CLOCKDIAG;
+
+        buf.put((byte)m.type.ordinal());
+        putVarint(buf, m.origin);
+        putSigned(buf, m.label);
+        putVarint(buf, m.crIndex);
+        putVarint(buf, m.instance);
+        buf.put((byte)flags);
+
+        if(m.clock != null) putArray(buf, m.clock);
+        if(m.llr != null) putArray(buf, m.llr);
+        if(m.lls != null) putArray(buf, m.lls);
+        if(m.crList != null) {
+            putVarint(buf, m.crList.length);
+            for(int i = 0; i < m.crList.length; i++) {
+                byte[] b = m.crList[i].getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                putVarint(buf, b.length);
+                buf.put(b);
             }
         }
-        incrementClock(n_i);
+        if(m.crNodes != null) putArray(buf, m.crNodes);
+        if(m.clockDiff != null) putArray(buf, m.clockDiff);
+        if(m.clockDiag != null) putArray(buf, m.clockDiag);
     }
 
-    private void transmitMessage(Message m, int dest) {
+    // Decode a single message or a batch, appending to out in the order they were sent
+    static void decodeFrame(ByteBuffer buf, ArrayList<Message> out) throws IOException {
+        int count = openFrame(buf);
+        for(int i = 0; i < count; i++) {
+            out.add(decodeNext(buf));
+        }
+    }
 
+    // Read the frame header, returns the number of messages to read with decodeNext
+    static int openFrame(ByteBuffer buf) throws IOException {
         try {
-            // Send message to dest
-            InetSocketAddress serverAddr = new InetSocketAddress(hosts[dest], ports[dest]);
-            SctpChannel sc = SctpChannel.open(serverAddr, 0, 0);
+            checkVersion(buf);
 
-            MessageInfo messageInfo = MessageInfo.createOutgoing(null, 0);
-            sc.send(ByteBuffer.wrap(serializeObject(m)), messageInfo);
-
-            // Wait for echo from server
-            byte[] data = new byte[1024];
-            ByteBuffer buf = ByteBuffer.wrap(data);
+            int length = buf.getInt();
+            if(length != buf.remaining()) {
+                throw new IOException("Frame length "+length+" but "+buf.remaining()+" bytes received");
+            }
 
-            sc.receive(buf, null, null);
+            if(!buf.hasRemaining()) {
+                throw new java.nio.BufferUnderflowException();
+            }
+            if(buf.get(buf.position()) != BATCH) {
+                return 1;
+            }
+            buf.get();
+            return getLength(buf);
 
-            sc.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated message", e);
         }
     }
 
-    public synchronized void sendMessage(int dest, Message m, Boolean broadcast) {
-
+    // Decode the next message straight from the buffer
+    static Message decodeNext(ByteBuffer buf) throws IOException {
         try {
-            sending.acquire();
+            return decodeBody(buf, buf.get());
+
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    private static void checkVersion(ByteBuffer buf) throws IOException {
+        int version = buf.get();
+        if(version != VERSION) {
+            throw new IOException("Unsupported message version "+version);
+        }
+    }
+
+    private static Message decodeBody(ByteBuffer buf, int type) throws IOException {
+        if(type < 0 || type >= TYPES.length) {
+            throw new IOException("Unknown message type "+type);
+        }
+
+        Message m = new Message();
+        m.type = TYPES[type];
+        m.origin = getVarint(buf);
+        m.label = getSigned(buf);
+        m.crIndex = getVarint(buf);
+        m.instance = getVarint(buf);
+        int flags = buf.get();
+
+        if((flags & HAS_CLOCK) != 0) m.clock = getArray(buf);
+        if((flags & HAS_LLR) != 0) m.llr = getArray(buf);
+        if((flags & HAS_LLS) != 0) m.lls = getArray(buf);
+        if((flags & HAS_CRLIST) != 0) {
+            m.crList = new String[getLength(buf)];
+            for(int i = 0; i < m.crList.length; i++) {
+                byte[] b = new byte[getLength(buf)];
+                buf.get(b);
+                m.crList[i] = new String(b, java.nio.charset.StandardCharsets.UTF_8);
+            }
+        }
+        if((flags & HAS_CRNODES) != 0) m.crNodes = getArray(buf);
+        if((flags & HAS_CLOCKDIFF) != 0) m.clockDiff = getArray(buf);
+        if((flags & HAS_CLOCKDIAG) != 0) m.clockDiag = getArray(buf);
+
+        return m;
+    }
+
+    private static void putArray(ByteBuffer buf, int[] a) {
+        putVarint(buf, a.length);
+        for(int i = 0; i < a.length; i++) {
+            putSigned(buf, a[i]);
+        }
+    }
+
+    private static int[] getArray(ByteBuffer buf) throws IOException {
+        int[] a = new int[getLength(buf)];
+        for(int i = 0; i < a.length; i++) {
+            a[i] = getSigned(buf);
+        }
+        return a;
+    }
+
+    // Zigzag so that -1 (bottom) is a single byte
+    private static void putSigned(ByteBuffer buf, int v) {
+        putVarint(buf, (v << 1) ^ (v >> 31));
+    }
+
+    private static int getSigned(ByteBuffer buf) {
+        int v = getVarint(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // A count of elements that follow, each takes at least a byte
+    // Checked before anything is allocated for them
+    private static int getLength(ByteBuffer buf) throws IOException {
+        int count = getVarint(buf);
+        if(count < 0 || count > buf.remaining()) {
+            throw new IOException("Bad array length "+count);
+        }
+        return count;
+    }
+
+    private static void putVarint(ByteBuffer buf, int v) {
+        while((v & ~0x7F) != 0) {
+            buf.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    private static int getVarint(ByteBuffer buf) {
+        int v = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new java.nio.BufferUnderflowException();
+    }
+}
+
+/******************************************************************************/
+class ServerHandler {
+
+    private static final int RECEIVE = 1 << 16;    // Frames up to this size arrive in one piece
+
+    Protocol p;
+    SctpChannel sc;
+    int maxFrame;           // Longer frames are an error, see MessageCodec.maxFrame
+    ByteBuffer[] partial;   // Frame arriving in pieces on each stream, sized from its header
+
+    ServerHandler(Protocol p, SctpChannel sc, int maxFrame) {
+        this.p = p;
+        this.sc = sc;
+        this.maxFrame = maxFrame;
+        partial = new ByteBuffer[Transport.STREAMS];
+    }
+
+    // Drain every message currently available on the association
+    // Returns false once the peer has closed it
+    public boolean read() throws IOException {
+        ByteBuffer buf = BufferPool.take(RECEIVE);
+        Boolean open = false;
+        try {
+            while(true) {
+                buf.clear();
+                MessageInfo messageInfo = sc.receive(buf, null, null);
+
+                // Nothing more to read without blocking
+                if(messageInfo == null) {
+                    open = true;
+                    return true;
+                }
+
+                // Peer closed the association
+                if(messageInfo.bytes() == -1) {
+                    return false;
+                }
+
+                buf.flip();
+                p.metrics.bytesReceived(buf.remaining());
+                receive(buf, messageInfo.streamNumber(), messageInfo.isComplete());
+            }
+        } finally {
+            BufferPool.give(buf);
+            // The association is closed on an error too, drop what was half received
+            if(!open) {
+                release();
+            }
+        }
+    }
+
+    // Give back the buffers of frames still arriving
+    void release() {
+        for(int i = 0; i < partial.length; i++) {
+            if(partial[i] != null) {
+                BufferPool.give(partial[i]);
+                partial[i] = null;
+            }
+        }
+    }
+
+    // Take one piece of a frame received on stream, complete if it ends the frame
+    void receive(ByteBuffer buf, int stream, boolean complete) throws IOException {
+        if(stream < 0 || stream >= Transport.STREAMS) {
+            throw new IOException("Frame on unexpected stream "+stream);
+        }
+
+        if(partial[stream] == null && complete) {
+            unpack(buf);
+            return;
+        }
+
+        // A frame bigger than our buffer, or delivered partially by SCTP
+        if(partial[stream] == null) {
+            if(buf.remaining() < MessageCodec.HEADER) {
+                throw new IOException("Frame piece of "+buf.remaining()+" bytes is too short");
+            }
+            int size = MessageCodec.frameSize(buf, maxFrame);
+            partial[stream] = BufferPool.take(size);
+            partial[stream].limit(size);
+        }
+        if(buf.remaining() > partial[stream].remaining()) {
+            throw new IOException("Frame longer than its length");
+        }
+        partial[stream].put(buf);
+
+        if(complete) {
+            ByteBuffer frame = partial[stream];
+            partial[stream] = null;
+            frame.flip();
+            try {
+                unpack(frame);
+            } finally {
+                BufferPool.give(frame);
+            }
+        }
+    }
+
+    // Unpack batches in the order they were sent
+    private void unpack(ByteBuffer frame) throws IOException {
+        int count = MessageCodec.openFrame(frame);
+        for(int i = 0; i < count; i++) {
+            p.putQueue(MessageCodec.decodeNext(frame));
+        }
+    }
+}
+
+/******************************************************************************/
+class Server implements Runnable{
+
+    private Protocol p;
+    private int port;
+    private int maxFrame;
+    private SctpServerChannel ssc;
+    private Selector selector;
+    private volatile Boolean closeFlag;
+
+    Server(Protocol p, int port, int maxFrame) {
+        this.p = p;
+        this.port = port;
+        this.maxFrame = maxFrame;
+        closeFlag = false;
+    }
+
+    public void closeServer() {
+        closeFlag = true;
+        if(selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept() throws IOException {
+        SctpChannel sc = ssc.accept();
+        if(sc == null) {
+            return;
+        }
+
+        sc.configureBlocking(false);
+        sc.register(selector, SelectionKey.OP_READ, new ServerHandler(p, sc, maxFrame));
+    }
+
+    private void read(SelectionKey key) {
+        ServerHandler handler = (ServerHandler)key.attachment();
+        try {
+            if(handler.read()) {
+                return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // Association closed or broken, stop watching it
+        key.cancel();
+        try {
+            handler.sc.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void run() {
+        System.out.println("Server running "+port);
+
+        try {
+            selector = Selector.open();
+            ssc = SctpServerChannel.open();
+            ssc.setOption(SctpStandardSocketOptions.SCTP_INIT_MAXSTREAMS,
+                SctpStandardSocketOptions.InitMaxStreams.create(Transport.STREAMS, Transport.STREAMS));
+            InetSocketAddress serverAddr = new InetSocketAddress(port);
+            ssc.bind(serverAddr);
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // Single thread accepts and reads every association
+        while(!closeFlag) {
+
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if(!key.isValid()) {
+                        continue;
+                    }
+
+                    if(key.isAcceptable()) {
+                        accept();
+                    } else if(key.isReadable()) {
+                        read(key);
+                    }
+                }
+
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        System.out.println("Closing server");
+
+        try {
+            for(SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            System.out.println("Closed ssc");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/******************************************************************************/
+class Sender implements Runnable{
+
+    private static final int CAPACITY = 64;    // Maximum queued messages per destination
+
+    private Protocol p;
+    private int dest;
+    private ArrayBlockingQueue<Message> queue;
+    private int pending;        // Queued or in flight
+
+    // A lock rather than a monitor, a virtual thread waiting in a monitor pins its carrier before Java 24
+    private ReentrantLock lock;
+    private Condition drained;
+
+    private ArrayList<Message> batch;
+    private Message carry;      // Did not fit in the last batch, goes first in the next
+
+    Sender(Protocol p, int dest) {
+        this.p = p;
+        this.dest = dest;
+        queue = new ArrayBlockingQueue<Message>(CAPACITY);
+        pending = 0;
+        lock = new ReentrantLock();
+        drained = lock.newCondition();
+        batch = new ArrayList<Message>();
+    }
+
+    // Queue a stamped message, blocks if the queue is full
+    public void put(Message m) {
+        lock.lock();
+        try {
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            queue.put(m);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Wait until everything queued so far is on the wire
+    public void flush() {
+        lock.lock();
+        try {
+            while(pending > 0) {
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Collect messages that arrive within the batch window and fit in one frame
+    private void fillBatch(Message first) throws InterruptedException {
+        batch.clear();
+        batch.add(first);
+        int size = MessageCodec.BATCH_HEADER + MessageCodec.maxSize(first);
+
+        long deadline = System.nanoTime() + Options.batchWindow * 1000000L;
+        while(batch.size() < Options.batchMax) {
+            long remaining = deadline - System.nanoTime();
+            Message m = queue.poll(max(remaining, 0), TimeUnit.NANOSECONDS);
+            if(m == null) {
+                break;
+            }
+
+            size += MessageCodec.maxSize(m);
+            if(size > MessageCodec.MAX_BATCH) {
+                carry = m;
+                break;
+            }
+            batch.add(m);
+        }
+    }
+
+    public void run() {
+        while(true) {
+            int sent;
+            try {
+                Message m = carry;
+                carry = null;
+                if(m == null) {
+                    m = queue.take();
+                }
+
+                if(Options.batchWindow > 0) {
+                    fillBatch(m);
+                    p.transmitBatch(batch, dest);
+                    sent = batch.size();
+                } else {
+                    p.transmitMessage(m, dest);
+                    sent = 1;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            lock.lock();
+            try {
+                pending -= sent;
+                if(pending == 0) {
+                    drained.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
+
+/******************************************************************************/
+class ProtocolPasser implements Runnable{
+
+    private Protocol p;
+    private int dest;
+    private String[] crList;
+    private int[] crNodes;
+    private int crIndex;
+    private int delay;
+
+    ProtocolPasser(Protocol p, int dest, String [] crList, int [] crNodes, int crIndex, int delay) {
+        this.p = p;
+        this.dest = dest;
+        this.crList = crList;
+        this.crNodes = crNodes;
+        this.crIndex = crIndex;
+        this.delay = delay;
+    }
+
+    public void run() {
+
+        p.delay(p.nextExp(delay));
+
+        Message m = new Message();
+        m.crList = crList;
+        m.crNodes = crNodes;
+        m.crIndex = crIndex;
+        m.origin = p.n_i;
+        m.type = MessageType.PROTOCOL;
+        m.instance = crIndex;
+
+        if(Options.concurrent) {
+            // The running instance holds the freeze, passing the token does not need it
+            p.transmitMessage(m, dest);
+        } else {
+            p.sendMessage(dest, m, false);
+        }
+    }
+}
+
+/******************************************************************************/
+interface Transport {
+
+    // SCTP streams, frames on the same stream arrive in the order they were sent
+    // SIMPLE messages and the messages that must not overtake them go on ORDERED,
+    // the rest of the protocol traffic on CONTROL so a burst of SIMPLE messages cannot hold it up
+    static final int ORDERED = 0;
+    static final int CONTROL = 1;
+    static final int STREAMS = 2;
+
+    // Send one frame to dest on the given stream, consumes the buffer
+    void send(int dest, ByteBuffer data, int stream) throws IOException;
+
+    void close();
+}
+
+/******************************************************************************/
+class ConnectionManager implements Transport {
+
+    private static final int RETRIES = 5;
+    private static final int RETRY_DELAY = 100;   // msec between reconnect attempts
+
+    private String[] hosts;
+    private int[] ports;
+
+    private InetSocketAddress[] addrs;  // Resolved addresses, cached
+    private SctpChannel[] channels;     // One long lived association per destination
+    private int[] sendBuffers;          // SO_SNDBUF of each association, 0 until connected
+    private int[] outStreams;           // Streams the peer accepted on each association
+
+    // Serialize sends per destination to keep FIFO
+    // Locks rather than monitors, a virtual thread blocked in a monitor pins its carrier before Java 24
+    private ReentrantLock[] locks;
+
+    ConnectionManager(String[] hosts, int[] ports) {
+        this.hosts = hosts;
+        this.ports = ports;
+
+        addrs = new InetSocketAddress[hosts.length];
+        channels = new SctpChannel[hosts.length];
+        sendBuffers = new int[hosts.length];
+        outStreams = new int[hosts.length];
+        locks = new ReentrantLock[hosts.length];
+        for(int i = 0; i < hosts.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private SctpChannel connect(int dest) throws IOException {
+        if(addrs[dest] == null || addrs[dest].isUnresolved()) {
+            addrs[dest] = new InetSocketAddress(hosts[dest], ports[dest]);
+        }
+        SctpChannel channel = SctpChannel.open(addrs[dest], Transport.STREAMS, Transport.STREAMS);
+        outStreams[dest] = channel.association().maxOutboundStreams();
+        return channel;
+    }
+
+    private void drop(int dest) {
+        if(channels[dest] != null) {
+            try {
+                channels[dest].close();
+            } catch (IOException e) {
+                // Already broken, nothing to do
+            }
+            channels[dest] = null;
+            sendBuffers[dest] = 0;
+        }
+    }
+
+    // The kernel refuses an SCTP message bigger than the send buffer, grow it to fit
+    private void fitSendBuffer(int dest, int size) throws IOException {
+        if(sendBuffers[dest] == 0) {
+            sendBuffers[dest] = channels[dest].getOption(SctpStandardSocketOptions.SO_SNDBUF);
+        }
+        if(size > sendBuffers[dest]) {
+            channels[dest].setOption(SctpStandardSocketOptions.SO_SNDBUF, size);
+            sendBuffers[dest] = channels[dest].getOption(SctpStandardSocketOptions.SO_SNDBUF);
+        }
+    }
+
+    public void send(int dest, ByteBuffer data, int stream) throws IOException {
+
+        locks[dest].lock();
+        try {
+            IOException last = null;
+
+            for(int attempt = 0; attempt < RETRIES; attempt++) {
+                try {
+                    if(channels[dest] == null) {
+                        channels[dest] = connect(dest);
+                    }
+                    fitSendBuffer(dest, data.remaining());
+
+                    // A peer that allows fewer streams gets everything in order on the first one
+                    if(stream >= outStreams[dest]) {
+                        stream = Transport.ORDERED;
+                    }
+
+                    MessageInfo messageInfo = MessageInfo.createOutgoing(null, stream);
+                    channels[dest].send(data, messageInfo);
+                    return;
+
+                } catch (IOException e) {
+                    // Association failed, reconnect and try again
+                    last = e;
+                    data.rewind();
+                    drop(dest);
+                    // Force the address to be resolved again on the next attempt
+                    addrs[dest] = null;
+
+                    try {
+                        Thread.sleep(RETRY_DELAY);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            throw last;
+        } finally {
+            locks[dest].unlock();
+        }
+    }
+
+    public void close() {
+        for(int i = 0; i < channels.length; i++) {
+            locks[i].lock();
+            try {
+                drop(i);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+}
+
+/******************************************************************************/
+class SimNetwork {
+
+    // In memory network joining Protocol instances in one JVM
+
+    private Protocol[] nodes;
+    private long latency;       // nsec
+    private long jitter;        // nsec
+    private double loss;
+    private Random random;
+    private ScheduledExecutorService wire;     // Delivers delayed frames, one thread keeps them in order
+
+    private AtomicLong frames;
+    private AtomicLong bytes;
+    private AtomicLong dropped;
+
+    SimNetwork(int n, int latency, int jitter, double loss, long seed) {
+        this.latency = latency * 1000L;
+        this.jitter = jitter * 1000L;
+        this.loss = loss;
+
+        nodes = new Protocol[n];
+        random = new Random(seed);
+        frames = new AtomicLong();
+        bytes = new AtomicLong();
+        dropped = new AtomicLong();
+
+        wire = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void attach(int i, Protocol p) {
+        nodes[i] = p;
+    }
+
+    // Each node sends through its own transport
+    public Transport transport() {
+        return new SimTransport(this, nodes.length);
+    }
+
+    // Delay for the next frame, nsec
+    public synchronized long delay() {
+        if(jitter == 0) {
+            return latency;
+        }
+        return latency + (long)(random.nextDouble() * jitter);
+    }
+
+    private synchronized Boolean lost() {
+        return loss > 0 && random.nextDouble() < loss;
+    }
+
+    // Hand the frame to dest at the given time, System.nanoTime based
+    public void deliver(final int dest, final ByteBuffer data, long at) {
+        frames.incrementAndGet();
+        bytes.addAndGet(data.remaining());
+
+        if(latency == 0 && jitter == 0) {
+            receive(dest, data);
+            return;
+        }
+
+        try {
+            wire.schedule(new Runnable() {
+                public void run() {
+                    receive(dest, data);
+                }
+            }, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Network shut down, late frames go nowhere
+        }
+    }
+
+    // The frame came from the buffer pool, it goes back once decoded
+    private void receive(int dest, ByteBuffer data) {
+        nodes[dest].metrics.bytesReceived(data.remaining());
+
+        try {
+            int count = MessageCodec.openFrame(data);
+            for(int i = 0; i < count; i++) {
+                Message m = MessageCodec.decodeNext(data);
+                if(m.type == MessageType.SIMPLE && lost()) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                nodes[dest].putQueue(m);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            BufferPool.give(data);
+        }
+    }
+
+    public void shutdown() {
+        wire.shutdownNow();
+    }
+
+    public String stats() {
+        return frames.get()+" frames, "+bytes.get()+" bytes, "+dropped.get()+" SIMPLE messages dropped";
+    }
+}
+
+/******************************************************************************/
+class SimTransport implements Transport {
+
+    private SimNetwork net;
+    private long[][] last;      // Delivery time of the last frame on each stream to each node, keeps streams FIFO
+
+    SimTransport(SimNetwork net, int n) {
+        this.net = net;
+        last = new long[Transport.STREAMS][n];
+    }
+
+    public synchronized void send(int dest, ByteBuffer data, int stream) throws IOException {
+
+        // Take a copy, the caller may reuse the buffer
+        ByteBuffer copy = BufferPool.take(data.remaining());
+        copy.put(data);
+        copy.flip();
+
+        long at = System.nanoTime() + net.delay();
+        if(at < last[stream][dest]) {
+            at = last[stream][dest];
+        }
+        last[stream][dest] = at;
+
+        net.deliver(dest, copy, at);
+    }
+
+    public void close() {
+    }
+}
+
+/******************************************************************************/
+class Histogram {
+
+    // Durations in nsec counted in power of two buckets, recording does not allocate
+
+    private static final int BUCKETS = 65;
+
+    private AtomicLongArray buckets;
+    private AtomicLong count;
+    private AtomicLong sum;
+    private AtomicLong max;
+
+    Histogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+
+        // Bucket b holds values below 2^b
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long m = max.get();
+        while(m < nanos && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    // Upper bound of the bucket holding the q quantile
+    public long percentile(double q) {
+        long c = count.get();
+        if(c == 0) {
+            return 0;
+        }
+
+        long target = (long)ceil(q * c);
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(b);
+            if(seen >= target) {
+                long bound = (b == 0) ? 0 : (b == 64) ? Long.MAX_VALUE : (1L << b) - 1;
+                return min(bound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // count, sum, p50, p99, max
+    public long[] summary() {
+        return new long[] {count.get(), sum.get(), percentile(0.5), percentile(0.99), max.get()};
+    }
+
+    public String toJson() {
+        return "{\"count\":"+count.get()+",\"sum\":"+sum.get()+",\"p50\":"+percentile(0.5)+
+            ",\"p99\":"+percentile(0.99)+",\"max\":"+max.get()+"}";
+    }
+}
+
+/******************************************************************************/
+class Metrics implements DynamicMBean {
+
+    // Per node counters, exposed over JMX and dumped periodically as JSON lines
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private static final String[][] ATTRIBUTES = {
+        {"MessageTypes", "[Ljava.lang.String;", "Message type names, index for the message arrays"},
+        {"MessagesSent", "[J", "Messages sent by type"},
+        {"MessagesReceived", "[J", "Messages received by type"},
+        {"BytesSent", "long", "Bytes handed to the transport"},
+        {"BytesReceived", "long", "Bytes read from the transport"},
+        {"QueueDepth", "int", "Messages waiting in the receive queue"},
+        {"MaxQueueDepth", "long", "Deepest the receive queue has been"},
+        {"SendingWaits", "long", "Times the sending semaphore was acquired"},
+        {"SendingWaitNanos", "long", "Time spent waiting for the sending semaphore"},
+        {"CheckHandlerNanos", "[J", "checkHandler duration, count sum p50 p99 max"},
+        {"RecoveryHandlerNanos", "[J", "recoveryHandler duration, count sum p50 p99 max"},
+        {"GatherNanos", "[J", "Vector clock gather duration, count sum p50 p99 max"},
+        {"Dump", "java.lang.String", "All of the above as JSON"},
+        {"Tracing", "boolean", "Events are recorded to the trace file, or printed without one, writable"},
+    };
+
+    // One thread dumps every node in the JVM
+    private static ScheduledExecutorService dumper;
+
+    private Protocol p;
+    private ObjectName name;
+    private ScheduledFuture<?> dump;
+
+    private AtomicLongArray sent;
+    private AtomicLongArray received;
+    private AtomicLong bytesSent;
+    private AtomicLong bytesReceived;
+    private AtomicLong maxQueueDepth;
+    private AtomicLong sendingWaits;
+    private AtomicLong sendingWaitNanos;
+
+    Histogram checkHandler;
+    Histogram recoveryHandler;
+    Histogram gather;
+
+    Metrics(Protocol p) {
+        this.p = p;
+
+        sent = new AtomicLongArray(TYPES.length);
+        received = new AtomicLongArray(TYPES.length);
+        bytesSent = new AtomicLong();
+        bytesReceived = new AtomicLong();
+        maxQueueDepth = new AtomicLong();
+        sendingWaits = new AtomicLong();
+        sendingWaitNanos = new AtomicLong();
+
+        checkHandler = new Histogram();
+        recoveryHandler = new Histogram();
+        gather = new Histogram();
+    }
+
+    // Register with the platform MBean server and start the periodic dump, period in msec, 0 disables
+    public void start(int period) {
+        try {
+            name = new ObjectName("KooToueg:type=Metrics,node="+p.n_i);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if(period > 0) {
+            synchronized(Metrics.class) {
+                if(dumper == null) {
+                    dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+
+            dump = dumper.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.out.println("METRICS "+toJson());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if(dump != null) {
+            dump.cancel(false);
+        }
+        System.out.println("METRICS "+toJson());
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            // Never registered
+        }
+    }
+
+    public void sent(MessageType type) {
+        sent.incrementAndGet(type.ordinal());
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void received(MessageType type, int queueDepth) {
+        received.incrementAndGet(type.ordinal());
+
+        long m = maxQueueDepth.get();
+        while(m < queueDepth && !maxQueueDepth.compareAndSet(m, queueDepth)) {
+            m = maxQueueDepth.get();
+        }
+    }
+
+    public void bytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public void sendingWait(long nanos) {
+        sendingWaits.incrementAndGet();
+        sendingWaitNanos.addAndGet(nanos);
+    }
+
+    private static long[] toArray(AtomicLongArray a) {
+        long[] r = new long[a.length()];
+        for(int i = 0; i < r.length; i++) {
+            r[i] = a.get(i);
+        }
+        return r;
+    }
+
+    private static String toJson(AtomicLongArray a) {
+        StringBuilder sb = new StringBuilder("{");
+        for(int i = 0; i < TYPES.length; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(TYPES[i]).append("\":").append(a.get(i));
+        }
+        return sb.append('}').toString();
+    }
+
+    public String toJson() {
+        return "{\"node\":"+p.n_i+",\"time\":"+System.currentTimeMillis()+
+            ",\"sent\":"+toJson(sent)+",\"received\":"+toJson(received)+
+            ",\"bytesSent\":"+bytesSent.get()+",\"bytesReceived\":"+bytesReceived.get()+
+            ",\"queueDepth\":"+p.queueDepth()+",\"maxQueueDepth\":"+maxQueueDepth.get()+
+            ",\"sendingWaits\":"+sendingWaits.get()+",\"sendingWaitNanos\":"+sendingWaitNanos.get()+
+            ",\"checkHandler\":"+checkHandler.toJson()+",\"recoveryHandler\":"+recoveryHandler.toJson()+
+            ",\"gather\":"+gather.toJson()+"}";
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch(attribute) {
+            case "MessageTypes":
+                String[] names = new String[TYPES.length];
+                for(int i = 0; i < TYPES.length; i++) {
+                    names[i] = TYPES[i].name();
+                }
+                return names;
+            case "MessagesSent":
+                return toArray(sent);
+            case "MessagesReceived":
+                return toArray(received);
+            case "BytesSent":
+                return bytesSent.get();
+            case "BytesReceived":
+                return bytesReceived.get();
+            case "QueueDepth":
+                return p.queueDepth();
+            case "MaxQueueDepth":
+                return maxQueueDepth.get();
+            case "SendingWaits":
+                return sendingWaits.get();
+            case "SendingWaitNanos":
+                return sendingWaitNanos.get();
+            case "CheckHandlerNanos":
+                return checkHandler.summary();
+            case "RecoveryHandlerNanos":
+                return recoveryHandler.summary();
+            case "GatherNanos":
+                return gather.summary();
+            case "Dump":
+                return toJson();
+            case "Tracing":
+                return (p.tracer != null) ? p.tracer.isEnabled() : p.console;
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for(int i = 0; i < attributes.length; i++) {
+            try {
+                list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+            } catch (AttributeNotFoundException e) {
+                // Left out of the list
+            }
+        }
+        return list;
+    }
+
+    // Only tracing can be switched, the trace file if the node has one or else the console
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+        if(!attribute.getName().equals("Tracing")) {
+            throw new AttributeNotFoundException(attribute.getName());
+        }
+        if(!(attribute.getValue() instanceof Boolean)) {
+            throw new InvalidAttributeValueException(attribute.getName());
+        }
+        if(p.tracer != null) {
+            p.tracer.setEnabled((Boolean)attribute.getValue());
+        } else {
+            p.console = (Boolean)attribute.getValue();
+        }
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        AttributeList list = new AttributeList();
+        for(int i = 0; i < attributes.size(); i++) {
+            Attribute a = (Attribute)attributes.get(i);
+            try {
+                setAttribute(a);
+                list.add(a);
+            } catch (Exception e) {
+                // Left out of the list
+            }
+        }
+        return list;
+    }
+
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[ATTRIBUTES.length];
+        for(int i = 0; i < ATTRIBUTES.length; i++) {
+            Boolean writable = ATTRIBUTES[i][0].equals("Tracing");
+            attrs[i] = new MBeanAttributeInfo(ATTRIBUTES[i][0], ATTRIBUTES[i][1], ATTRIBUTES[i][2], true, writable, ATTRIBUTES[i][1].equals("boolean"));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Koo-Toueg node metrics", attrs, null, null, null);
+    }
+}
+
+/******************************************************************************/
+enum TraceEvent {
+
+    // Arguments to the text are node, origin, label, value and the value as a MessageType
+    RESTORED("%1$d Restored checkpoint, label %3$d clock %4$d"),
+    CHECKPOINT("%1$d Checkpoint, label %3$d clock %4$d"),
+    ROLLBACK("%1$d Recovery, label %3$d clock %4$d"),
+    CGS_VIOLATION("%1$d Vector clocks not concurrent, i = %2$d j = %3$d clock[j][i] = %4$d"),
+    TREE_UNREACHED("Node %2$d not reached by the gather tree"),
+    TREE_VIOLATION("%1$d Vector clocks not concurrent, i = %2$d max = %4$d"),
+    STILL_WAITING("%1$d Still waiting for %5$s"),
+    IGNORED_RESPONSE("%1$d Ignoring %5$s for instance %3$d from %2$d"),
+    NOT_TAKING_CHECKPOINT("%1$d Not taking a CP"),
+    NOT_ROLLING_BACK("%1$d Not Rolling back"),
+    COMMITTING("%1$d Committing checkpoint after %4$d us"),
+    ROLLING_BACK("%1$d Rolling back after %4$d us"),
+    EXECUTING_CHECKPOINT("Node %1$d executing c"),
+    EXECUTING_RECOVERY("Node %1$d executing r"),
+    COMPLETE_CHECKPOINT("Node %1$d complete c %3$d"),
+    COMPLETE_RECOVERY("Node %1$d complete r %3$d"),
+    CONSISTENT("%1$d Vector clocks concurrent"),
+    INCONSISTENT_OVERLAP("%1$d Inconsistent global state with overlapping instances, gathering again, attempt %4$d"),
+    PASSING("Passing protocol message");
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final String text;
+
+    TraceEvent(String text) {
+        this.text = text;
+    }
+
+    public String format(int node, int origin, int label, int value) {
+        String type = (value >= 0 && value < TYPES.length) ? TYPES[value].name() : "?";
+        return String.format(text, node, origin, label, value, type);
+    }
+}
+
+/******************************************************************************/
+class Tracer {
+
+    // Ring of fixed size event records in a memory mapped file, one per node
+    // Header: magic | version | node | capacity | epoch msec | nanoTime, both at start
+    // Record: sequence + 1 | nanoTime | event | origin | label | value
+    // The sequence is written last, 0 marks a slot that is empty or being written
+
+    static final int MAGIC = 0x4B545452;
+    static final int VERSION = 1;
+    static final int HEADER = 64;
+    static final int RECORD = 32;
+
+    private MappedByteBuffer map;
+    private int capacity;
+    private AtomicLong next;
+    private volatile boolean enabled;
+
+    Tracer(String dir, int n_i, int capacity) throws IOException {
+        this.capacity = capacity;
+        next = new AtomicLong();
+        enabled = true;
+
+        // Start from an empty file, old events would look valid
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "trace_"+n_i+".bin"), "rw");
+        try {
+            file.setLength(0);
+            file.setLength(HEADER + (long)capacity * RECORD);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, n_i);
+        map.putInt(12, capacity);
+        map.putLong(16, System.currentTimeMillis());
+        map.putLong(24, System.nanoTime());
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Safe from any thread, each writer claims its own slot
+    public void record(TraceEvent e, int origin, int label, int value) {
+        if(!enabled) {
+            return;
+        }
+
+        long seq = next.getAndIncrement();
+        int off = HEADER + (int)(seq % capacity) * RECORD;
+
+        map.putLong(off, 0);
+        map.putLong(off + 8, System.nanoTime());
+        map.putInt(off + 16, e.ordinal());
+        map.putInt(off + 20, origin);
+        map.putInt(off + 24, label);
+        map.putInt(off + 28, value);
+        map.putLong(off, seq + 1);
+    }
+}
+
+/******************************************************************************/
+class VectorClock {
+
+    // Vector clock shared by the application and protocol threads without a lock
+    // Only the protocol thread merges, sends only bump our own entry
+    // For differential sends every entry remembers the version of the merge that last raised it
+    // Entries live in a plain array accessed atomically, so a checkpoint can take the array
+    // itself with capture(), the first change after it goes into a copy
+
+    private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final AtomicReferenceFieldUpdater<VectorClock, int[]> ENTRIES =
+        AtomicReferenceFieldUpdater.newUpdater(VectorClock.class, int[].class, "entries");
+
+    private final int n_i;
+    private volatile int[] entries;
+    private volatile int[] captured;        // Handed to a checkpoint, never written again
+    private final AtomicIntegerArray updated;
+    private final AtomicInteger version;
+    private volatile boolean merging;
+
+    VectorClock(int n, int n_i) {
+        this.n_i = n_i;
+        entries = new int[n];
+        updated = new AtomicIntegerArray(n);
+        version = new AtomicInteger();
+    }
+
+    public int get(int i) {
+        return (int)ENTRY.getVolatile(entries, i);
+    }
+
+    // The array to change, copied first if a checkpoint holds it
+    // A send and a merge may both copy, the one that loses uses the winner's copy
+    private int[] writable() {
+        int[] e = entries;
+        if(e != captured) {
+            return e;
+        }
+        int[] copy = new int[e.length];
+        for(int i = 0; i < e.length; i++) {
+            copy[i] = (int)ENTRY.getVolatile(e, i);
+        }
+        return ENTRIES.compareAndSet(this, e, copy) ? copy : entries;
+    }
+
+    // Count a local event, returns our new entry
+    public int increment() {
+        return (int)ENTRY.getAndAdd(writable(), n_i, 1) + 1;
+    }
+
+    // Raise entry i to at least value, true if it changed
+    private boolean raise(int[] e, int i, int value) {
+        int current = (int)ENTRY.getVolatile(e, i);
+        while(current < value) {
+            if(ENTRY.compareAndSet(e, i, current, value)) {
+                return true;
+            }
+            current = (int)ENTRY.getVolatile(e, i);
+        }
+        return false;
+    }
+
+    public void merge(int[] clock) {
+        merging = true;
+        int v = version.incrementAndGet();
+        int[] e = writable();
+        for(int i = 0; i < clock.length; i++) {
+            if(raise(e, i, clock[i])) {
+                updated.set(i, v);
+            }
+        }
+        merging = false;
+    }
+
+    // Merge (index, value) pairs
+    public void mergeDiff(int[] clockDiff) {
+        merging = true;
+        int v = version.incrementAndGet();
+        int[] e = writable();
+        for(int k = 0; k < clockDiff.length; k += 2) {
+            if(raise(e, clockDiff[k], clockDiff[k+1])) {
+                updated.set(clockDiff[k], v);
+            }
+        }
+        merging = false;
+    }
+
+    // Every update up to this version is visible, read it before looking for changed entries
+    // A merge still in progress is left for the next send
+    public int stable() {
+        int v = version.get();
+        return merging ? v - 1 : v;
+    }
+
+    // Version of the merge that last raised entry i
+    public int updated(int i) {
+        return updated.get(i);
+    }
+
+    public int[] snapshot() {
+        return snapshot(new int[entries.length]);
+    }
+
+    // Copy into an array the caller reuses
+    public int[] snapshot(int[] a) {
+        int[] e = entries;
+        for(int i = 0; i < a.length; i++) {
+            a[i] = (int)ENTRY.getVolatile(e, i);
+        }
+        return a;
+    }
+
+    // The current entries without copying them, only while no other thread changes the clock
+    // The caller must not write the array, it stays as it is while the clock moves on
+    public int[] capture() {
+        int[] e = entries;
+        captured = e;
+        return e;
+    }
+
+    // Replace every entry, only while no other thread uses the clock
+    public void reset(int[] clock) {
+        int[] e = writable();
+        for(int i = 0; i < clock.length; i++) {
+            ENTRY.setVolatile(e, i, clock[i]);
+            updated.set(i, 0);
+        }
+    }
+}
+
+/******************************************************************************/
+class ReceiveRing {
+
+    // Bounded queue from the receive threads to the protocol thread, positions are claimed
+    // in order and every slot is reused a lap later, nothing is allocated per message
+    // Slot sequence: the position while free, position + 1 once the message is published,
+    // position + capacity once consumed, which hands the slot to the producer of the next lap
+    // The protocol thread can leave a message in its slot with defer() and read from the
+    // oldest one again with resume(), deferred messages keep their place in arrival order
+    // When deferred messages hold up more than half the ring they move to a local list,
+    // a long wait on a response never stops the producers
+
+    private static final int SPINS = 64;
+    private static final long PARK = 50000;     // nsec a producer waits on a full ring
+
+    private final int capacity;
+    private final int mask;
+    private final Message[] slots;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail;              // Next position a producer claims
+    private volatile Thread waiter;             // Consumer parked waiting for a message
+
+    // Only the consumer changes these
+    private volatile long head;                 // Oldest position not consumed
+    private long cursor;                        // Next position to read
+    private long taken;                         // Position of the last message returned, -1 if none
+    private ArrayList<Message> spill;           // Deferred messages moved out, older than head
+    private int spillCursor;
+    private int spillTaken;                     // Index of the last message returned from the spill
+    private int spillLive;
+
+    ReceiveRing(int size) {
+        capacity = Integer.highestOneBit(max(2, size - 1)) << 1;
+        mask = capacity - 1;
+        slots = new Message[capacity];
+        sequence = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        tail = new AtomicLong();
+        taken = -1;
+        spill = new ArrayList<Message>();
+        spillTaken = -1;
+    }
+
+    // Safe from any thread, waits while the ring is full
+    public void put(Message m) {
+        int spins = 0;
+        while(true) {
+            long pos = tail.get();
+            int i = (int)pos & mask;
+            long seq = sequence.get(i);
+            if(seq == pos) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    slots[i] = m;
+                    sequence.set(i, pos + 1);
+
+                    Thread t = waiter;
+                    if(t != null) {
+                        LockSupport.unpark(t);
+                    }
+                    return;
+                }
+            } else if(seq < pos) {
+                // Still holds the message from the last lap
+                if(++spins < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK);
+                }
+            }
+        }
+    }
+
+    // Messages in the ring, deferred ones and the consumed slots behind them included
+    public int size() {
+        return (int)(tail.get() - head);
+    }
+
+    // Next message without waiting, null if there is none
+    public Message poll() {
+        release();
+        return next();
+    }
+
+    // Next message, null if none arrives within timeout msec
+    public Message poll(long timeout) throws InterruptedException {
+        release();
+        Message m = next();
+        if(m != null) {
+            return m;
+        }
+
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        waiter = Thread.currentThread();
+        try {
+            while(true) {
+                // Look again after setting waiter, a producer that missed it published before we read
+                m = next();
+                if(m != null) {
+                    return m;
+                }
+                long left = deadline - System.nanoTime();
+                if(left <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, left);
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Leave the last message returned where it is, it comes back after resume()
+    public void defer() {
+        taken = -1;
+        spillTaken = -1;
+        settle();
+    }
+
+    // Read from the oldest deferred message again
+    public void resume() {
+        release();
+
+        if(spillLive < spill.size()) {
+            int j = 0;
+            for(int i = 0; i < spill.size(); i++) {
+                if(spill.get(i) != null) {
+                    spill.set(j++, spill.get(i));
+                }
+            }
+            spill.subList(j, spill.size()).clear();
+        }
+        spillCursor = 0;
+        cursor = head;
+    }
+
+    private Message next() {
+        while(spillCursor < spill.size()) {
+            Message m = spill.get(spillCursor);
+            if(m != null) {
+                spillTaken = spillCursor++;
+                return m;
+            }
+            spillCursor++;
+        }
+
+        while(true) {
+            int i = (int)cursor & mask;
+            long seq = sequence.get(i);
+            if(seq == cursor + 1) {
+                taken = cursor++;
+                return slots[i];
+            } else if(seq > cursor + 1) {
+                // Consumed on an earlier pass
+                cursor++;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    // The last message returned was handled, free its slot
+    private void release() {
+        if(spillTaken != -1) {
+            spill.set(spillTaken, null);
+            spillTaken = -1;
+            if(--spillLive == 0) {
+                spill.clear();
+                spillCursor = 0;
+            }
+        }
+        if(taken != -1) {
+            int i = (int)taken & mask;
+            slots[i] = null;
+            sequence.set(i, taken + capacity);
+            taken = -1;
+        }
+        settle();
+    }
+
+    // Move head past the consumed slots, spill the deferred ones if they hold up too much of the ring
+    private void settle() {
+        long h = head;
+        while(h < cursor && sequence.get((int)h & mask) != h + 1) {
+            h++;
+        }
+
+        if(cursor - h > capacity / 2 && spillCursor == spill.size()) {
+            for(; h < cursor; h++) {
+                int i = (int)h & mask;
+                if(sequence.get(i) == h + 1) {
+                    spill.add(slots[i]);
+                    spillLive++;
+                    slots[i] = null;
+                    sequence.set(i, h + capacity);
+                }
+            }
+            spillCursor = spill.size();
+        }
+        head = h;
+    }
+}
+
+/******************************************************************************/
+class Protocol implements Runnable{
+
+    public int n;
+    public int n_i;
+    private int[] neighbors;
+    private int crDelay;
+
+    // The schedule from the protocol token, and in concurrent mode the instances that have finished
+    private String[] crList;
+    private int[] crNodes;
+    private BitSet instanceDone;        // Instances we started that have finished
+    private BitSet allDone;             // Instances that have finished along with every one before
+
+    private Boolean[] complete;
+    private Semaphore sending;
+
+    // Written by sends and receives at the same time, lock free
+    private VectorClock clock;
+
+    // Only used by the protocol thread
+    private int[] llr;          // Last label received
+
+    // Only used while holding the sending semaphore, by sends or by a frozen protocol thread
+    private int[] fls;          // First label sent
+    private int[] lls;          // Last label sent
+    private int[] templls;      // Last label sent, temporary before taking CP
+    private int label;
+
+    // Bottom arrays swapped in for llr, fls and templls by a checkpoint, so the freeze does not
+    // allocate, the arrays swapped out are filled again by resetSpares() before the next freeze
+    private int[] spareLLR;
+    private int[] spareFLS;
+    private int[] spareTempLLS;
+    private Boolean sparesUsed;
+
+    // Differential clock state, Singhal-Kshemkalyani, also under the sending semaphore
+    private int[] clockSent;            // Clock version when we last sent to j, -1 to send everything
+    private int[] clockDiff;            // Scratch space for building a differential clock
+
+    private Checkpoint tentative;
+    private Checkpoint perm;
+    private CheckpointStore store;      // Durable copy of perm, null if disabled
+
+    // Sender side message log
+    private ArrayList<LinkedList<Message>> sendLog;     // SIMPLE messages sent to each node, in label order
+    private int[] delivered;            // Last label delivered from each node, never cleared by a checkpoint
+    private Boolean deliveredShared;    // A checkpoint holds delivered, copy it before the next change
+    private int[] logAcked;             // Last label each node has in a checkpoint, older log entries can go
+
+    // Rollback statistics
+    private int rollbacks;
+    private int eventsUndone;           // Events on our own clock entry lost to rollbacks
+    private int sendsKept;              // Logged sends kept through a rollback
+    private int messagesReplayed;       // Logged messages sent again to a recovering node
+
+    private Transport connections;
+    private Sender[] senders;                // Outbound application queues, started on first use
+
+    Metrics metrics;
+    Tracer tracer;                      // null prints events to the console
+    volatile boolean console = true;    // Print events when there is no tracer
+    private ExecutorService fanout;          // Sends control messages to several neighbors at once
+
+    private static final int RESPONSE_TIMEOUT = 5000;   // msec before warning about a missing response
+    private static final int RECHECK_DELAY = 100;       // msec before gathering an overlapped instance again
+    private static final int RECHECK_LIMIT = 50;        // Gathers before an inconsistent state is an error
+    private static final int ANNOUNCE_DELAY = 500;      // msec between attempts to reach a node that is not up
+
+    private Boolean[] ready;                 // Nodes that have announced themselves
+    private CountDownLatch readyLatch;       // Counts down the other nodes as they announce themselves
+
+    private ReceiveRing receiveQueue;        // Server produces messages, protocol consumes
+
+    public int[][] clockMatrix;
+    public Boolean[] vectorReceived;
+
+    Protocol(int n, int n_i, int[] neighbors, String[] hosts, int[] ports, int crDelay) {
+        this(n, n_i, neighbors, new ConnectionManager(hosts, ports), crDelay);
+    }
+
+    Protocol(int n, int n_i, int[] neighbors, Transport connections, int crDelay) {
+        this.n = n;
+        this.n_i = n_i;
+        this.neighbors= neighbors;
+        this.connections = connections;
+        this.crDelay = crDelay;
+        instanceDone = new BitSet();
+        allDone = new BitSet();
+
+        complete = new Boolean[n];
+        ready = new Boolean[n];
+        for(int i = 0; i < n; i++) {
+            complete[i] = false;
+            ready[i] = false;
+        }
+        readyLatch = new CountDownLatch(n - 1);
+        sending = new Semaphore(1, true);
+
+        // Initialize vector clock
+        clock = new VectorClock(n, n_i);
+
+        // Initialize LLR
+        llr = new int[n];
+        for(int i = 0; i < n; i++) {
+            llr[i] = -1;
+        }
+
+        // Initialize FLS
+        fls = new int[n];
+        for(int i = 0; i < n; i++) {
+            fls[i] = -1;
+        }
+
+        // Initialize LLS
+        lls = new int[n];
+        for(int i = 0; i < n; i++) {
+            lls[i] = -1;
+        }
+
+        // Initialize temporary LLS
+        templls = new int[n];
+        for(int i = 0; i < n; i++) {
+            templls[i] = -1;
+        }
+
+        label = -1;
+
+        spareLLR = bottom();
+        spareFLS = bottom();
+        spareTempLLS = bottom();
+        sparesUsed = false;
+
+        clockSent = new int[n];
+        clockDiff = new int[2 * n];
+
+        // Initialize checkpoints
+        tentative = new Checkpoint();
+        tentative.llr = new int[n];
+        tentative.fls = new int[n];
+        tentative.lls = new int[n];
+        tentative.clock = new int[n];
+        tentative.label = -1;
+
+        perm = new Checkpoint();
+        perm.llr = new int[n];
+        perm.fls = new int[n];
+        perm.lls = new int[n];
+        perm.clock = new int[n];
+        perm.label = -1;        // Taken before the first send, labels start at 0
+
+        if(Options.messageLog) {
+            sendLog = new ArrayList<LinkedList<Message>>();
+            for(int i = 0; i < n; i++) {
+                sendLog.add(new LinkedList<Message>());
+            }
+            delivered = bottom();
+            deliveredShared = false;
+            logAcked = bottom();
+            tentative.delivered = bottom();
+            perm.delivered = bottom();
+        }
+
+        if(Options.traceDir != null) {
+            try {
+                tracer = new Tracer(Options.traceDir, n_i, Options.traceSize);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Restore the last committed checkpoint if we are restarting after a crash
+        if(Options.checkpointDir != null) {
+            try {
+                store = new CheckpointStore(Options.checkpointDir, n_i, n, Options.fsync, Options.fullEvery);
+                if(store.load(perm)) {
+                    label = perm.label;
+                    clock.reset(perm.clock);
+                    for(int i = 0; i < n; i++) {
+                        lls[i] = perm.lls[i];
+                    }
+
+                    trace(TraceEvent.RESTORED, n_i, perm.label, perm.clock[n_i]);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                store = null;
+            }
+        }
+
+        receiveQueue = new ReceiveRing(Options.ringSize);
+
+        vectorReceived = new Boolean[n];
+
+        fanout = TaskRunner.shared();
+        if(fanout == null) {
+            fanout = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        senders = new Sender[n];
+
+        metrics = new Metrics(this);
+        metrics.start(Options.metricsPeriod);
+    }
+
+    public Boolean checkCGS(int[][] clocks) {
+
+        // return true if vector clocks form CGS, false if not
+        for(int i=0;i<clocks.length;i++) {
+            for(int j = 0;j < clocks.length;j++) {
+                if(clocks[i][i] < clocks[j][i]) {
+                    trace(TraceEvent.CGS_VIOLATION, i, j, clocks[j][i]);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Record an event in the trace, or print it if there is no trace
+    // The text is only formatted when it is printed
+    void trace(TraceEvent e, int origin, int label, int value) {
+        if(tracer != null) {
+            tracer.record(e, origin, label, value);
+        } else if(console) {
+            System.out.println(e.format(n_i, origin, label, value));
+        }
+    }
+
+    // Return an exponential random variable from mean lambda
+    public double nextExp(int lambda) {
+        return (-lambda)*Math.log(1-Math.random())/Math.log(2);
+    }
+
+    public void delay(double msec) {
+
+        try {
+            Thread.sleep((long)msec);
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Method to serialize messages, give the buffer back to the pool once it is sent
+    ByteBuffer serializeObject(Message m) {
+        ByteBuffer buf = BufferPool.take(MessageCodec.maxSize(m));
+        MessageCodec.encode(m, buf);
+        buf.flip();
+        return buf;
+    }
+
+
+    // Fresh array of bottom values
+    private int[] bottom() {
+        int[] a = new int[n];
+        Arrays.fill(a, -1);
+        return a;
+    }
+
+    // Fill the arrays a checkpoint swapped out, called before freezing for one
+    private void resetSpares() {
+        if(sparesUsed) {
+            Arrays.fill(spareLLR, -1);
+            Arrays.fill(spareFLS, -1);
+            Arrays.fill(spareTempLLS, -1);
+            sparesUsed = false;
+        }
+    }
+
+    int incrementClock() {
+        return clock.increment();
+    }
+
+    // Fill in the clock of a message to dest, only the changed entries in differential mode
+    // dest is -1 when the message goes to everyone
+    private void stampClock(Message m, int dest) {
+
+        int now = clock.stable();
+
+        if(!Options.diffClock || dest == -1) {
+            m.clock = clock.snapshot();
+
+            if(Options.diffClock) {
+                for(int j = 0; j < n; j++) {
+                    clockSent[j] = now;
+                }
+            }
+            return;
+        }
+
+        // Look at each entry once, a receive may be merging while we scan
+        // Our own entry changes with every event so it always goes
+        int d = 0;
+        for(int k = 0; k < n; k++) {
+            if(k == n_i || clock.updated(k) > clockSent[dest]) {
+                clockDiff[d++] = k;
+                clockDiff[d++] = clock.get(k);
+            }
+        }
+
+        m.clockDiff = Arrays.copyOf(clockDiff, d);
+        clockSent[dest] = now;
+    }
+
+    // Peer j rolled back and lost what we told it, send it the full clock next time
+    private void resetClockSent(int j) {
+        clockSent[j] = -1;
+    }
+
+    private void updateLLR(int origin, int label, Boolean clear) {
+        if(clear) {
+            llr[origin] = -1;
+        } else {
+            llr[origin] = label;
+        }
+    }
+
+    private void updateFLS(int dest, int label, Boolean clear) {
+        if(clear) {
+            fls[dest] = -1;
+        } else if(fls[dest] == -1) {
+            fls[dest] = label;
+        }
+    }
+
+    private void updateTempLLS(int dest, int label) {
+        templls[dest] = label;
+    }
+
+    // Remember a SIMPLE message to dest, the log always holds the full clock
+    private void logMessage(Message m, int dest) {
+        Message e = m;
+        if(m.clock == null) {
+            e = new Message();
+            e.type = m.type;
+            e.origin = m.origin;
+            e.label = m.label;
+            e.clock = clock.snapshot();
+        }
+        sendLog.get(dest).add(e);
+    }
+
+    // Drop the log entries to dest that are in both our checkpoint and the receiver's
+    private void trimLog(int dest) {
+        int stable = min(perm.label, logAcked[dest]);
+        LinkedList<Message> log = sendLog.get(dest);
+        while(log.peek() != null && log.peek().label <= stable) {
+            log.remove();
+        }
+    }
+
+    // A checkpoint request from a neighbor tells us what it has saved from us
+    private void logAck(Message m) {
+        if(Options.messageLog && m.llr[n_i] > logAcked[m.origin]) {
+            logAcked[m.origin] = m.llr[n_i];
+            trimLog(m.origin);
+        }
+    }
+
+    // After rolling back keep the sends we logged since the checkpoint, the receivers have them
+    private void keepLoggedSends() {
+        for(int d = 0; d < n; d++) {
+            Iterator<Message> it = sendLog.get(d).iterator();
+            while(it.hasNext()) {
+                Message e = it.next();
+                if(e.label <= perm.label) {
+                    continue;
+                }
+
+                if(label < e.label) {
+                    label = e.label;
+                }
+                clock.merge(e.clock);
+                updateFLS(d, e.label, false);
+                updateTempLLS(d, e.label);
+                sendsKept++;
+            }
+        }
+    }
+
+    // Last label sent to each node that survives our rollback
+    private int[] recoveryLLS() {
+        if(!Options.messageLog) {
+            return lls;
+        }
+
+        int[] a = lls.clone();
+        for(int i = 0; i < n; i++) {
+            if(a[i] < templls[i]) {
+                a[i] = templls[i];
+            }
+        }
+        return a;
+    }
+
+    // Peer m.origin is rolling back
+    private void peerRecovering(Message m) {
+        resetClockSent(m.origin);
+
+        if(!Options.messageLog) {
+            return;
+        }
+
+        // Replay what it lost from us, m.llr is the last label it has in its checkpoint
+        Iterator<Message> it = sendLog.get(m.origin).iterator();
+        while(it.hasNext()) {
+            Message e = it.next();
+            if(e.label > m.llr[n_i]) {
+                transmitMessage(e, m.origin);
+                messagesReplayed++;
+            }
+        }
+    }
+
+    void commitCheckpoint() {
+
+        // Commit the temporary checkpoint, checkpoint arrays are never written so swap them
+        Checkpoint committed = tentative;
+        tentative = perm;
+        perm = committed;
+
+        // Commit the LLS
+        lls = perm.lls;
+        int[] used = templls;
+        templls = spareTempLLS;
+        spareTempLLS = used;
+        sparesUsed = true;
+
+        if(Options.messageLog) {
+            for(int i = 0; i < n; i++) {
+                trimLog(i);
+            }
+        }
+
+        // Make the checkpoint durable
+        if(store != null) {
+            try {
+                store.append(perm);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        trace(TraceEvent.CHECKPOINT, n_i, perm.label, perm.clock[n_i]);
+    }
+
+    void rollback() {
+        int before = clock.get(n_i);
+        rollbacks++;
+
+        label = perm.label;
+
+        clock.reset(perm.clock);
+
+        llr = bottom();
+        fls = bottom();
+        templls = bottom();
+
+        for(int i = 0; i < n; i++) {
+            clockSent[i] = -1;
+        }
+
+        if(Options.messageLog) {
+            delivered = perm.delivered.clone();
+            deliveredShared = false;
+            keepLoggedSends();
+        }
+        eventsUndone += before - clock.get(n_i);
+
+        trace(TraceEvent.ROLLBACK, n_i, label, clock.get(n_i));
+    }
+
+    void mergeClock(int[] clock) {
+        // Merge the give clock value with our own clock
+        this.clock.merge(clock);
+        incrementClock();
+    }
+
+    private void mergeClockDiff(int[] clockDiff) {
+        // Merge only the entries the sender says changed
+        clock.mergeDiff(clockDiff);
+        incrementClock();
+    }
+
+    // RECOVERY must not overtake the SIMPLE messages sent before the rollback, or the receiver
+    // decides whether to roll back without them and keeps orphans, COMPLETE follows the last one
+    // The responses close a checkpoint or rollback at the requester, so they stay behind the
+    // SIMPLE messages the responder sent before it too
+    // Requests and the gather can go ahead, the sender is frozen until they are answered
+    private static int stream(MessageType type) {
+        switch(type) {
+            case SIMPLE:
+            case RECOVERY:
+            case RECOVERY_RESP:
+            case CHECKPOINT_RESP:
+            case COMPLETE:
+                return Transport.ORDERED;
+            default:
+                return Transport.CONTROL;
+        }
+    }
+
+    private void transmitBuffer(ByteBuffer buf, int dest, int stream) {
+
+        try {
+            // Send message to dest over the persistent association
+            connections.send(dest, buf, stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void transmitMessage(Message m, int dest) {
+        ByteBuffer buf = serializeObject(m);
+        metrics.sent(m.type);
+        metrics.bytesSent(buf.remaining());
+        transmitBuffer(buf, dest, stream(m.type));
+        BufferPool.give(buf);
+    }
+
+    // Send the same message to all dests concurrently, returns once every send is done
+    private void transmitAll(Message m, ArrayList<Integer> dests) {
+
+        if(dests.size() == 1) {
+            transmitMessage(m, dests.get(0));
+            return;
+        }
+
+        // Serialize once, every send gets its own view of the bytes
+        ByteBuffer data = serializeObject(m);
+        for(int i = 0; i < dests.size(); i++) {
+            metrics.sent(m.type);
+        }
+        metrics.bytesSent((long)data.remaining() * dests.size());
+
+        final int stream = stream(m.type);
+        ArrayList<Future<?>> sends = new ArrayList<Future<?>>();
+        for(int i = 0; i < dests.size(); i++) {
+            final ByteBuffer buf = data.duplicate();
+            final int dest = dests.get(i);
+
+            sends.add(fanout.submit(new Runnable() {
+                public void run() {
+                    transmitBuffer(buf, dest, stream);
+                }
+            }));
+        }
+
+        for(int i = 0; i < sends.size(); i++) {
+            try {
+                sends.get(i).get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        BufferPool.give(data);
+    }
+
+    // Start the sender thread for dest the first time we send to it
+    // Called holding the sending semaphore, which also publishes it to freeze()
+    private Sender sender(int dest) {
+        if(senders[dest] == null) {
+            senders[dest] = new Sender(this, dest);
+            TaskRunner.start(senders[dest], true);
+        }
+        return senders[dest];
+    }
+
+    // Stop the application from sending and wait for queued messages to go out
+    private void freeze() {
+        long start = System.nanoTime();
+        try {
+            sending.acquire();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        metrics.sendingWait(System.nanoTime() - start);
+
+        for(int i = 0; i < n; i++) {
+            if(senders[i] != null) {
+                senders[i].flush();
+            }
+        }
+    }
+
+    private void unfreeze() {
+        sending.release();
+    }
+
+    public void transmitBatch(ArrayList<Message> batch, int dest) {
+
+        if(batch.size() == 1) {
+            transmitMessage(batch.get(0), dest);
+            return;
+        }
+
+        int size = MessageCodec.BATCH_HEADER;
+        for(int i = 0; i < batch.size(); i++) {
+            size += MessageCodec.maxSize(batch.get(i));
+        }
+        ByteBuffer buf = BufferPool.take(size);
+        MessageCodec.encodeBatch(batch, buf);
+        buf.flip();
+
+        for(int i = 0; i < batch.size(); i++) {
+            metrics.sent(batch.get(i).type);
+        }
+        metrics.bytesSent(buf.remaining());
+
+        // Batches only come from the sender threads, application traffic
+        transmitBuffer(buf, dest, Transport.ORDERED);
+        BufferPool.give(buf);
+    }
+
+    public void sendMessage(int dest, Message m, Boolean broadcast) {
+
+        freeze();
 
         m.origin = n_i;
 
@@ -501,49 +2987,138 @@ class Protocol implements Runnable{
             }
         }
 
-        sending.release();
+        unfreeze();
     }
 
     // Send message to neighbor
-    public synchronized void sendMessage(int dest, MessageType type, Boolean broadcast) {
+    public void sendMessage(int dest, MessageType type, Boolean broadcast) {
 
+        long start = System.nanoTime();
         try {
             sending.acquire();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        metrics.sendingWait(System.nanoTime() - start);
 
-        // Send generic message directly to neighbor
+        // Stamp the message here, in order, the sender threads put it on the wire
         Message m = new Message();
         m.type = type;
         m.origin = n_i;
-        m.clock = incrementClock(n_i);
+        incrementClock();
         m.label = ++label;
 
         if(!broadcast) {
-            transmitMessage(m, dest);
+            stampClock(m, dest);
+            sender(dest).put(m);
             updateFLS(dest, m.label, false);
             updateTempLLS(dest, m.label);
+            if(Options.messageLog && type == MessageType.SIMPLE) {
+                logMessage(m, dest);
+            }
 
         } else {
+            stampClock(m, -1);
             for(int i = 0; i < n; i++) {
-                transmitMessage(m, i);
+                sender(i).put(m);
                 updateFLS(i, m.label, false);
                 updateTempLLS(i, m.label);
+                if(Options.messageLog && type == MessageType.SIMPLE) {
+                    logMessage(m, i);
+                }
             }
         }
 
         sending.release();
     }
 
+    // Tell every other node we are listening, keep trying the ones that are not up yet
+    public void announce() {
+        Message m = new Message();
+        m.type = MessageType.READY;
+        m.origin = n_i;
+
+        for(int i = 0; i < n; i++) {
+            if(i == n_i) {
+                continue;
+            }
+
+            while(true) {
+                ByteBuffer buf = serializeObject(m);
+                try {
+                    metrics.sent(m.type);
+                    metrics.bytesSent(buf.remaining());
+                    connections.send(i, buf, stream(m.type));
+                    break;
+                } catch (IOException e) {
+                    System.out.println(n_i+" Waiting for node "+i+" to start");
+                    delay(ANNOUNCE_DELAY);
+                } finally {
+                    BufferPool.give(buf);
+                }
+            }
+        }
+    }
+
+    // Block until every other node has announced itself
+    public void awaitReady() {
+        try {
+            while(!readyLatch.await(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                System.out.println(n_i+" Waiting for "+readyLatch.getCount()+" nodes to announce themselves");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void putQueue(Message m) {
         try {
-            receiveQueue.add(m);
+            receiveQueue.put(m);
+            metrics.received(m.type, receiveQueue.size());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    int queueDepth() {
+        return receiveQueue.size();
+    }
+
+    // Block until the next message arrives, warn periodically if we are waiting on a response
+    Message takeQueue(MessageType waitingFor) {
+        while(true) {
+            try {
+                Message m = receiveQueue.poll(RESPONSE_TIMEOUT);
+                if(m != null) {
+                    return m;
+                }
+                if(waitingFor != null) {
+                    trace(TraceEvent.STILL_WAITING, n_i, -1, waitingFor.ordinal());
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Message pollQueue() {
+        try {
+            return receiveQueue.poll(RESPONSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Boolean anyWaiting(Boolean[] waiting) {
+        for(int i = 0; i < waiting.length; i++) {
+            if(waiting[i] == true) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void startCR(String[] crList, int[] crNodes) {
 
         Message m = new Message();
@@ -561,58 +3136,146 @@ class Protocol implements Runnable{
         sendMessage(dest, m, false);
     }
 
+    // Handle a message that belongs to another exchange while we wait on our own
+    // Gather requests only read our state so they are answered now, everything else waits its turn
+    private void answerOrDefer(Message m) {
+        if(!Options.treeGather && (m.type == MessageType.VECTOR_CLOCK || m.type == MessageType.VECTOR_CLOCK_CHECK)) {
+            int dest = m.origin;
+            m.clock = (m.type == MessageType.VECTOR_CLOCK_CHECK) ? perm.clock : clock.snapshot();
+            m.origin = n_i;
+            m.type = MessageType.VECTOR_CLOCK_RESP;
+
+            transmitMessage(m, dest);
+        } else {
+            receiveQueue.defer();
+        }
+    }
+
+    private Boolean sameKindNext(int instance) {
+        return crList.length > instance + 1 && crList[instance + 1].equals(crList[instance]);
+    }
+
+    // Concurrent mode, once an instance we started and every instance before it have finished
+    // tell the initiator of the next one, and hand it the token now if it is of the other kind
+    private void finishInstance(int instance) {
+        if(!instanceDone.get(instance) || allDone.get(instance)) {
+            return;
+        }
+        if(instance > 0 && !allDone.get(instance - 1)) {
+            return;
+        }
+        allDone.set(instance);
+
+        if(crList.length <= instance + 1) {
+            return;
+        }
+
+        Message m = new Message();
+        m.type = MessageType.PROTOCOL_DONE;
+        m.origin = n_i;
+        m.instance = instance;
+        m.crList = crList;
+        m.crNodes = crNodes;
+        transmitMessage(m, crNodes[instance + 1]);
+
+        if(!sameKindNext(instance)) {
+            trace(TraceEvent.PASSING, n_i, instance, -1);
+            TaskRunner.start(new ProtocolPasser(this, crNodes[instance + 1], crList, crNodes, instance + 1, crDelay), false);
+        }
+    }
+
+    // With overlapping instances a gather can find a node that has committed a checkpoint
+    // while the one it depends on is still committing, so gather again a while later
+    // A state that stays inconsistent is an error like in serial mode
+    private void reportGather(Boolean consistent, int instance, int attempt) {
+        if(consistent) {
+            trace(TraceEvent.CONSISTENT, n_i, instance, -1);
+        } else if(Options.concurrent && attempt < RECHECK_LIMIT) {
+            trace(TraceEvent.INCONSISTENT_OVERLAP, n_i, instance, attempt);
+            recheckLater(instance, attempt + 1);
+        } else {
+            System.out.println("ERROR, inconsistent global state");
+            while(true) {}
+        }
+    }
+
+    // Queue a RECHECK for ourselves, the instances still running go on meanwhile
+    private void recheckLater(int instance, int attempt) {
+        final Message m = new Message();
+        m.type = MessageType.RECHECK;
+        m.origin = n_i;
+        m.instance = instance;
+        m.label = attempt;
+
+        TaskRunner.start(new Runnable() {
+            public void run() {
+                delay(RECHECK_DELAY);
+                putQueue(m);
+            }
+        }, false);
+    }
+
     // -1 if this node is the initiator
-    public void checkHandler(int origin)
+    public void checkHandler(int origin, int instance)
     {
+        long start = System.nanoTime();
+
         // Empty out the receive queue, assuming that only simple messages will be in the queue
         while(true) {
 
             // Process messages in the received queue
-            if(receiveQueue.peek() != null) {
-                Message m = receiveQueue.remove();
+            Message m = receiveQueue.poll();
+            if(m != null) {
 
                 if(m.type == MessageType.SIMPLE) {
-                    tempreceiveQueue.add(m);
+                    receiveQueue.defer();
                     
                 } else if(m.type == MessageType.CHECKPOINT) { 
-                    // ALRIGHT
+                    // ALRIGHT, merged with the checkpoint we are about to take
+                    logAck(m);
 
                     // Send the CP response
                     Message mr = new Message();
                     mr.type = MessageType.CHECKPOINT_RESP;
                     mr.origin = n_i;
+                    mr.instance = m.instance;
 
                     transmitMessage(mr, m.origin);
                     // System.out.println(n_i+" 0Sent CHECKPOINT_RESP to "+m.origin);
 
 
                 } else {
-                    System.out.println("ERROR: Processed unknown message in CRHandler");
-                    System.out.println(m.type+" From "+m.origin);
-                    while(true) {}
+                    answerOrDefer(m);
                 }
             } else {
                 break;
             }
         }
 
-        // Take tentative checkpoint
+        // Take tentative checkpoint, capture the arrays by reference
+        // The clock and delivered are copied by their next change, after we unfreeze
+        int[] oldLLR = tentative.llr;
+        int[] oldFLS = tentative.fls;
         tentative.label = label;
-
-        // Clear our llr and fls
-        for(int i = 0; i < n; i++) {
-
-            tentative.llr[i] = llr[i];
-            tentative.fls[i] = fls[i];
-            tentative.lls[i] = lls[i];
-            tentative.clock[i] = clock[i];
-
-            llr[i] = -1;
-            fls[i] = -1;
+        tentative.clock = clock.capture();
+        tentative.lls = lls;
+        tentative.llr = llr;
+        tentative.fls = fls;
+        if(Options.messageLog) {
+            tentative.delivered = delivered;
+            deliveredShared = true;
         }
+
+        // Clear our llr and fls, swap in the spare bottom arrays
+        llr = spareLLR;
+        fls = spareFLS;
+        spareLLR = oldLLR;
+        spareFLS = oldFLS;
+        sparesUsed = true;
         
         // Determine which of our neighbors we need to send the message to
         Boolean[] neighborWaiting = new Boolean[n];
+        ArrayList<Integer> cpNeighbors = new ArrayList<Integer>();
         for(int i = 0; i < n; i++) {
             neighborWaiting[i] = false;
         }
@@ -631,91 +3294,92 @@ class Protocol implements Runnable{
             // Send CP request to neighbor
             // System.out.println(n_i+" Sending CHECKPOINT to neighbor "+neighbors[i]);
 
+            cpNeighbors.add(neighbors[i]);
+            neighborWaiting[neighbors[i]] = true;
+        }
+
+        // Send the CP requests to all of them at once
+        if(cpNeighbors.size() > 0) {
             Message m = new Message();
             m.type = MessageType.CHECKPOINT;
             m.origin = n_i;
+            m.instance = instance;
             m.clock = tentative.clock;
             m.label = tentative.label;
             m.llr = tentative.llr;
 
-            transmitMessage(m, neighbors[i]);
-            neighborWaiting[neighbors[i]] = true;
+            transmitAll(m, cpNeighbors);
         }
 
-        int iter = 0;
-        
-        while(true) {
-
-            // Process messages in the received queue
-            if(receiveQueue.peek() != null) {
-                Message m = receiveQueue.remove();
-
-                if(m.type == MessageType.CHECKPOINT_RESP) {
-                    // System.out.println(n_i+" Processing CHECKPOINT_RESP from "+m.origin);
-                    neighborWaiting[m.origin] = false;
+        while(anyWaiting(neighborWaiting)) {
 
-                } else if(m.type == MessageType.SIMPLE) {
-                    tempreceiveQueue.add(m);
-                } else if(m.type == MessageType.CHECKPOINT) {
-                    // Do nothing, already taking a checkpoint
+            // Block until the next message arrives
+            Message m = takeQueue(MessageType.CHECKPOINT_RESP);
 
-                        // Send the CP response
-                        Message mr = new Message();
-                        mr.type = MessageType.CHECKPOINT_RESP;
-                        mr.origin = n_i;
+            if(m.type == MessageType.CHECKPOINT_RESP && m.instance == instance) {
+                // System.out.println(n_i+" Processing CHECKPOINT_RESP from "+m.origin);
+                neighborWaiting[m.origin] = false;
 
-                        transmitMessage(mr, m.origin);
+            } else if(m.type == MessageType.CHECKPOINT_RESP) {
+                trace(TraceEvent.IGNORED_RESPONSE, m.origin, m.instance, m.type.ordinal());
+            } else if(m.type == MessageType.SIMPLE) {
+                receiveQueue.defer();
+            } else if(m.type == MessageType.CHECKPOINT) {
+                // Do nothing, already taking a checkpoint, the instances merge
+                logAck(m);
 
-                } else {
-                    System.out.println("ERROR: Unexpected type received in CRHandler");
-                    System.out.println(m.type+" From "+m.origin);
-                    while(true) {}
-                }
-            }
+                    // Send the CP response
+                    Message mr = new Message();
+                    mr.type = MessageType.CHECKPOINT_RESP;
+                    mr.origin = n_i;
+                    mr.instance = m.instance;
 
-            Boolean stillWaiting = false;
-            for(int i = 0; i < n; i++) {
-                if(neighborWaiting[i] == true) {
-                    stillWaiting = true;
-                    break;
-                }
-            }
+                    transmitMessage(mr, m.origin);
 
-            if(stillWaiting == false) {
-                break;
+            } else {
+                answerOrDefer(m);
             }
         }
 
-        // Put the simple messages back in the receive queue
-        while(tempreceiveQueue.peek() != null) {
-            putQueue(tempreceiveQueue.remove());
-        }
+        // Read the deferred messages again, they kept their place in the receive queue
+        receiveQueue.resume();
 
         // Commit the checkpoint
-        System.out.println(n_i+" Committing checkpoint");
+        long elapsed = System.nanoTime() - start;
+        metrics.checkHandler.record(elapsed);
+        trace(TraceEvent.COMMITTING, origin, instance, (int)(elapsed / 1000));
         commitCheckpoint();
     }
 
     // -1 if this node is the initiator
-    public void recoveryHandler(int origin)
+    public void recoveryHandler(int origin, int instance)
     {
+        long start = System.nanoTime();
+
         // Empty out the receive queue, assuming that only simple messages will be in the queue
         while(true) {
 
             // Process messages in the received queue
-            if(receiveQueue.peek() != null) {
-                Message m = receiveQueue.remove();
+            Message m = receiveQueue.poll();
+            if(m != null) {
 
                 if(m.type == MessageType.RECOVERY) { 
                     // ALRIGHT
+                    peerRecovering(m);
 
                     // Send the RECOVERY response
                     Message mr = new Message();
                     mr.type = MessageType.RECOVERY_RESP;
                     mr.origin = n_i;
+                    mr.instance = m.instance;
 
                     transmitMessage(mr, m.origin);
                     //System.out.println(n_i+" 0Sent RECOVERY_RESP to "+m.origin);
+                } else if(m.type == MessageType.CHECKPOINT) {
+                    // Answered once we have recovered, a checkpoint now would keep what we undo
+                    receiveQueue.defer();
+                } else if(m.type != MessageType.SIMPLE || Options.messageLog) {
+                    answerOrDefer(m);
                 }
             } else {
                 break;
@@ -724,69 +3388,276 @@ class Protocol implements Runnable{
         
         // Determine which of our neighbors we need to send the message to
         Boolean[] neighborWaiting = new Boolean[n];
+        ArrayList<Integer> rNeighbors = new ArrayList<Integer>();
+        for(int i = 0; i < n; i++) {
+            neighborWaiting[i] = false;
+        }
+        for(int i = 0; i < neighbors.length; i++) {
+
+            // Continue through originator of the recovery request
+            if(neighbors[i] == origin) {
+                continue;
+            }
+
+            rNeighbors.add(neighbors[i]);
+            neighborWaiting[neighbors[i]] = true;
+        }
+
+        // Send the recovery requests to all of them at once
+        if(rNeighbors.size() > 0) {
+            Message m = new Message();
+            m.type = MessageType.RECOVERY;
+            m.origin = n_i;
+            m.instance = instance;
+            m.clock = clock.snapshot();
+            m.label = label;
+            m.lls = recoveryLLS();
+
+            // With the message log, tell them what we have in our checkpoint so they can replay the rest
+            if(Options.messageLog) {
+                m.llr = perm.delivered;
+            }
+
+            transmitAll(m, rNeighbors);
+        }
+
+        while(anyWaiting(neighborWaiting)) {
+
+            // Block until the next message arrives
+            Message m = takeQueue(MessageType.RECOVERY_RESP);
+
+            if(m.type == MessageType.RECOVERY_RESP && m.instance == instance) {
+                // System.out.println(n_i+" Processing RECOVERY_RESP from "+m.origin);
+                neighborWaiting[m.origin] = false;
+
+            } else if(m.type == MessageType.RECOVERY_RESP) {
+                trace(TraceEvent.IGNORED_RESPONSE, m.origin, m.instance, m.type.ordinal());
+            } else if(m.type == MessageType.RECOVERY) {
+                // Do nothing, already taking a checkpoint
+                peerRecovering(m);
+
+                // Send the RECOVERY response
+                Message mr = new Message();
+                mr.type = MessageType.RECOVERY_RESP;
+                mr.origin = n_i;
+                mr.instance = m.instance;
+
+                transmitMessage(mr, m.origin);
+            } else if(m.type == MessageType.CHECKPOINT) {
+                // Answered once we have recovered
+                receiveQueue.defer();
+            } else if(m.type != MessageType.SIMPLE || Options.messageLog) {
+                answerOrDefer(m);
+            }
+        }
+
+        // Read the deferred messages again, they kept their place in the receive queue
+        receiveQueue.resume();
+
+        long elapsed = System.nanoTime() - start;
+        metrics.recoveryHandler.record(elapsed);
+
+        // Rollback if we did not initiate
+        if(origin != -1) {
+            trace(TraceEvent.ROLLING_BACK, origin, instance, (int)(elapsed / 1000));
+            rollback();
+        }
+    }
+
+    // Collect every node's clock at the initiator and check them
+    private Boolean gatherClocks(Boolean check, int instance) {
+
+        // Only the initiator needs the matrix, allocate it on the first gather
+        if(clockMatrix == null) {
+            clockMatrix = new int[n][n];
+        }
+
+        // Clear the vector clock matrix
+        for(int i = 0; i < n; i++) {
+            for(int j = 0; j < n; j++) {
+                clockMatrix[i][j] = 0;
+            }
+
+            vectorReceived[i] = false;
+        }
+
+        // Insert our own clock into the matrix
+        for(int i = 0; i < n; i++) {
+
+            if(check) {
+                clockMatrix[n_i][i] = perm.clock[i];                           
+            } else {
+                clockMatrix[n_i][i] = clock.get(i);
+            }
+        }
+        vectorReceived[n_i] = true;
+
+        // Broadcast VECTOR_CLOCK message
+        Message mz = new Message();
+
+        if(check) {
+            mz.type = MessageType.VECTOR_CLOCK_CHECK;                           
+        } else {
+            mz.type = MessageType.VECTOR_CLOCK;
+        }
+
+        mz.origin = n_i;
+        mz.instance = instance;
+        for(int i = 0; i < n; i++) {
+            if(i == n_i) {
+                continue;
+            }
+            transmitMessage(mz, i);                            
+        }
+
+        // Gather the results
+        while(true) {
+
+            Boolean stillWaiting = false;
+            for(int i = 0; i < n; i++) {
+                if(vectorReceived[i] == false) {
+                    stillWaiting = true;
+                    break;
+                }
+            }
+
+            if(!stillWaiting) {
+                break;
+            }
+
+            // Parse the incomming messages
+            Message mt = takeQueue(MessageType.VECTOR_CLOCK_RESP);
+            if(mt.type == MessageType.VECTOR_CLOCK_RESP && mt.instance == instance) {
+
+                // Store the clock value in the message
+                for(int i = 0; i < n; i++) {
+                    clockMatrix[mt.origin][i] = mt.clock[i];
+                }
+                vectorReceived[mt.origin] = true;
+
+            } else {
+                answerOrDefer(mt);
+            }
+        }
+        // Read the deferred messages again, they kept their place in the receive queue
+        receiveQueue.resume();
+
+        // Check in the checkCGS function
+        return checkCGS(clockMatrix);
+    }
+
+    // Reply to a gather request from a node that is not our parent in the tree
+    private void sendEmptyPartial(Message m) {
+        Message mr = new Message();
+        mr.type = MessageType.VECTOR_CLOCK_PARTIAL;
+        mr.origin = n_i;
+        mr.instance = m.instance;
+        transmitMessage(mr, m.origin);
+    }
+
+    // Forward a gather request down the tree and merge the partial results from the subtree
+    // max[i] ends up as the largest clock[i] in the subtree, diag[i] as node i's own clock[i]
+    private void treeGatherSubtree(MessageType type, int instance, int parent, int[] max, int[] diag) {
+
+        Boolean[] childWaiting = new Boolean[n];
         for(int i = 0; i < n; i++) {
-            neighborWaiting[i] = false;
+            childWaiting[i] = false;
         }
-        for(int i = 0; i < neighbors.length; i++) {
 
-            // Continue through originator of the recovery request
-            if(neighbors[i] == origin) {
+        Message mz = new Message();
+        mz.type = type;
+        mz.origin = n_i;
+        mz.instance = instance;
+        for(int i = 0; i < neighbors.length; i++) {
+            if(neighbors[i] == parent) {
                 continue;
             }
+            transmitMessage(mz, neighbors[i]);
+            childWaiting[neighbors[i]] = true;
+        }
 
-            Message m = new Message();
-            m.type = MessageType.RECOVERY;
-            m.origin = n_i;
-            m.clock = clock;
-            m.label = label;
-            m.lls = lls;
+        while(anyWaiting(childWaiting)) {
 
-            transmitMessage(m, neighbors[i]);
-            neighborWaiting[neighbors[i]] = true;
-        }
+            Message mt = takeQueue(MessageType.VECTOR_CLOCK_PARTIAL);
+            switch(mt.type) {
+                case VECTOR_CLOCK_PARTIAL:
+                    childWaiting[mt.origin] = false;
 
-        int iter = 0;
-        
-        while(true) {
+                    // Empty partial, the neighbor was already in the tree
+                    if(mt.clock == null) {
+                        break;
+                    }
 
-            // Process messages in the received queue
-            if(receiveQueue.peek() != null) {
-                Message m = receiveQueue.remove();
+                    for(int i = 0; i < n; i++) {
+                        if(max[i] < mt.clock[i]) {
+                            max[i] = mt.clock[i];
+                        }
+                        if(mt.clockDiag[i] != -1) {
+                            diag[i] = mt.clockDiag[i];
+                        }
+                    }
+                break;
+                case VECTOR_CLOCK:
+                case VECTOR_CLOCK_CHECK:
+                    // Already in the tree through another neighbor
+                    sendEmptyPartial(mt);
+                break;
+                default:
+                    receiveQueue.defer();
+            }
+        }
 
-                if(m.type == MessageType.RECOVERY_RESP) {
-                    // System.out.println(n_i+" Processing RECOVERY_RESP from "+m.origin);
-                    neighborWaiting[m.origin] = false;
+        // Read the deferred messages again, they kept their place in the receive queue
+        receiveQueue.resume();
+    }
 
-                } else if(m.type == MessageType.RECOVERY) {
-                    // Do nothing, already taking a checkpoint
+    // Gather the clocks over a spanning tree of the neighbors, only O(n) state at each node
+    private Boolean treeGatherClocks(Boolean check, int instance) {
 
-                    // Send the RECOVERY response
-                    Message mr = new Message();
-                    mr.type = MessageType.RECOVERY_RESP;
-                    mr.origin = n_i;
+        int[] own = check ? perm.clock : clock.snapshot();
+        int[] max = own.clone();
+        int[] diag = new int[n];
+        for(int i = 0; i < n; i++) {
+            diag[i] = -1;
+        }
+        diag[n_i] = max[n_i];
 
-                    transmitMessage(mr, m.origin);
-                }
-            }
+        treeGatherSubtree(check ? MessageType.VECTOR_CLOCK_CHECK : MessageType.VECTOR_CLOCK, instance, -1, max, diag);
 
-            Boolean stillWaiting = false;
-            for(int i = 0; i < n; i++) {
-                if(neighborWaiting[i] == true) {
-                    stillWaiting = true;
-                    break;
-                }
+        // Consistent if every node's own entry is the largest anyone has seen for it
+        for(int i = 0; i < n; i++) {
+            if(diag[i] == -1) {
+                trace(TraceEvent.TREE_UNREACHED, i, -1, -1);
+                return false;
             }
-
-            if(stillWaiting == false) {
-                break;
+            if(diag[i] < max[i]) {
+                trace(TraceEvent.TREE_VIOLATION, i, diag[i], max[i]);
+                return false;
             }
         }
+        return true;
+    }
 
-        // Rollback if we did not initiate
-        if(origin != -1) {
-            System.out.println(n_i+" Rolling back");                
-            rollback();
+    // Handle a tree gather request from our parent, reply with the merged result of our subtree
+    private void treeGatherHandler(Message m) {
+
+        int[] own = (m.type == MessageType.VECTOR_CLOCK_CHECK) ? perm.clock : clock.snapshot();
+        int[] max = own.clone();
+        int[] diag = new int[n];
+        for(int i = 0; i < n; i++) {
+            diag[i] = -1;
         }
+        diag[n_i] = max[n_i];
+
+        treeGatherSubtree(m.type, m.instance, m.origin, max, diag);
+
+        Message mr = new Message();
+        mr.type = MessageType.VECTOR_CLOCK_PARTIAL;
+        mr.origin = n_i;
+        mr.instance = m.instance;
+        mr.clock = max;
+        mr.clockDiag = diag;
+        transmitMessage(mr, m.origin);
     }
 
     public void run() {
@@ -795,137 +3666,112 @@ class Protocol implements Runnable{
 
         while(true) {
 
-            // Process messages in the received queue
-            if(receiveQueue.peek() != null) {
-                Message m = receiveQueue.remove();
+            // Block until the next message arrives, or timeout to recheck completion
+            Message m = pollQueue();
+            if(m != null) {
 
                 switch(m.type) {
                     case COMPLETE:
                         complete[m.origin] = true;
                     break;
+                    case PROTOCOL_DONE:
+                        crList = m.crList;
+                        crNodes = m.crNodes;
+                        allDone.set(m.instance);
+                        finishInstance(m.instance + 1);
+                    break;
+                    case RECHECK:
+                        freeze();
+                        reportGather(gatherClocks(crList[m.instance].equals("c"), m.instance), m.instance, m.label);
+                        unfreeze();
+                    break;
+                    case READY:
+                        if(!ready[m.origin]) {
+                            ready[m.origin] = true;
+                            readyLatch.countDown();
+                        }
+                    break;
                     case SIMPLE:
 
                         // System.out.println("Processing SIMPLE from "+m.origin);
+                        // Drop a replayed message we already have
+                        if(Options.messageLog) {
+                            if(m.label <= delivered[m.origin]) {
+                                break;
+                            }
+                            // A checkpoint holds the array, change a copy
+                            if(deliveredShared) {
+                                delivered = delivered.clone();
+                                deliveredShared = false;
+                            }
+                            delivered[m.origin] = m.label;
+                        }
+
                         // Update LLR
                         updateLLR(m.origin, m.label, false);
 
                         // Uppdate our vector clock
-                        mergeClock(m.clock);
-                    break;
-                    case PROTOCOL:
-
-                        System.out.println("Node "+n_i+" executing "+m.crList[m.crIndex]);
-
-                        // Lock the sending semaphore to prevent other threads from sending
-                        try {
-                            sending.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-
-                        if(m.crList[m.crIndex].equals("c")) {
-                            checkHandler(-1);                            
+                        if(m.clockDiff != null) {
+                            mergeClockDiff(m.clockDiff);
                         } else {
-                            rollback();
-                            recoveryHandler(-1);
+                            mergeClock(m.clock);
                         }
+                    break;
+                    case PROTOCOL:
 
-                        // Clear the vector clock matrix
-                        for(int i = 0; i < n; i++) {
-                            for(int j = 0; j < n; j++) {
-                                clockMatrix[i][j] = 0;
-                            }
-
-                            vectorReceived[i] = false;
-                        }
+                        // The schedule index identifies the instance
+                        int instance = m.crIndex;
+                        Boolean checkpointing = m.crList[m.crIndex].equals("c");
+                        crList = m.crList;
+                        crNodes = m.crNodes;
 
-                        // Insert our own clock into the matrix
-                        for(int i = 0; i < n; i++) {
+                        trace(checkpointing ? TraceEvent.EXECUTING_CHECKPOINT : TraceEvent.EXECUTING_RECOVERY, n_i, instance, -1);
 
-                            if(m.crList[m.crIndex].equals("c")) {
-                                clockMatrix[n_i][i] = perm.clock[i];                           
-                            } else {
-                                clockMatrix[n_i][i] = clock[i];
-                            }
+                        // Start the next instance while this one runs, if it is of the same kind
+                        if(Options.concurrent && sameKindNext(instance)) {
+                            TaskRunner.start(new ProtocolPasser(this, m.crNodes[instance + 1], m.crList, m.crNodes, instance + 1, crDelay), false);
                         }
-                        vectorReceived[n_i] = true;
 
-                        // Broadcast VECTOR_CLOCK message
-                        Message mz = new Message();
+                        // Lock the sending semaphore to prevent other threads from sending
+                        resetSpares();
+                        freeze();
 
-                        if(m.crList[m.crIndex].equals("c")) {
-                            mz.type = MessageType.VECTOR_CLOCK_CHECK;                           
+                        if(checkpointing) {
+                            checkHandler(-1, instance);                            
                         } else {
-                            mz.type = MessageType.VECTOR_CLOCK;
+                            rollback();
+                            recoveryHandler(-1, instance);
                         }
 
-                        mz.origin = n_i;
-                        for(int i = 0; i < n; i++) {
-                            if(i == n_i) {
-                                continue;
-                            }
-                            transmitMessage(mz, i);                            
+                        // Gather the vector clocks from every node and check them
+                        long gatherStart = System.nanoTime();
+                        Boolean consistent;
+                        if(Options.treeGather) {
+                            consistent = treeGatherClocks(checkpointing, instance);
+                        } else {
+                            consistent = gatherClocks(checkpointing, instance);
                         }
+                        metrics.gather.record(System.nanoTime() - gatherStart);
 
-                        // Gather the results
-                        while(true) {
-
-                            // Parse the incomming messages
-                            if(receiveQueue.peek() != null) {
-                                Message mt = receiveQueue.remove();
-                                switch(mt.type) {
-                                    case VECTOR_CLOCK_RESP:
-
-                                        // Store the clock value in the message
-                                        for(int i = 0; i < n; i++) {
-                                            clockMatrix[mt.origin][i] = mt.clock[i];
-                                        }
-                                        vectorReceived[mt.origin] = true;
-
-                                    break;
-                                    default:
-                                        // tempreceiveQueue.add(mt);
-                                }
-                            }
-
-                            Boolean stillWaiting = false;
-                            for(int i = 0; i < n; i++) {
-                                if(vectorReceived[i] == false) {
-                                    stillWaiting = true;
-                                    break;
-                                }
-                            }
+                        reportGather(consistent, instance, 1);
 
-                            if(!stillWaiting) {
-                                break;
-                            }
-                        }
-                        // Put messages back in the receive queue
-                        while(tempreceiveQueue.peek() != null) {
-                            // putQueue(tempreceiveQueue.remove());
-                        }
+                        trace(checkpointing ? TraceEvent.COMPLETE_CHECKPOINT : TraceEvent.COMPLETE_RECOVERY, n_i, instance, -1);
 
-                        // Check in the checkCGS function
-                        if(!checkCGS(clockMatrix)) {
-                            System.out.println("ERROR, inconsistent global state");
-                            while(true) {}
-                        } else {
-                            System.out.println(n_i+" Vector clocks concurrent");
+                        if(Options.concurrent) {
+                            instanceDone.set(instance);
+                            finishInstance(instance);
                         }
 
-                        System.out.println("Node "+n_i+" complete "+m.crList[m.crIndex]+" "+m.crIndex);
+                        if(!Options.concurrent && m.crList.length > ++m.crIndex) {
 
-                        if(m.crList.length > ++m.crIndex) {
-
-                            System.out.println("Passing protocol message");
+                            trace(TraceEvent.PASSING, n_i, instance, -1);
 
                             // Spawn a new thread to wait and send the protocol message to the next node
                             // ProtocolPasser(Protocol p, int dest, String [] crList, int [] crNodes, int crIndex, int delay) {
-                            Thread protocolPasser_thread = new Thread(new ProtocolPasser(this, m.crNodes[m.crIndex], m.crList, m.crNodes, m.crIndex, crDelay));
-                            protocolPasser_thread.start();
+                            TaskRunner.start(new ProtocolPasser(this, m.crNodes[m.crIndex], m.crList, m.crNodes, m.crIndex, crDelay), false);
                         }
 
-                        sending.release();
+                        unfreeze();
 
                     break;
 
@@ -934,30 +3780,29 @@ class Protocol implements Runnable{
                         // System.out.println(n_i+" Processing CHECKPOINT from "+m.origin);
 
                         // Lock the sending semaphore to prevent other threads from sending
-                        try {
-                            sending.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                        resetSpares();
+                        freeze();
+                        logAck(m);
 
                         // Determine if we need to take a CP
                         if((m.llr[n_i] >= fls[m.origin]) && (fls[m.origin] > -1)) {
                             // Take a CP
-                            checkHandler(m.origin);
+                            checkHandler(m.origin, m.instance);
                         } else {
-                            System.out.println(n_i+" Not taking a CP");
+                            trace(TraceEvent.NOT_TAKING_CHECKPOINT, m.origin, m.instance, -1);
                         }
 
                         // Send the CP response
                         Message mr = new Message();
                         mr.type = MessageType.CHECKPOINT_RESP;
                         mr.origin = n_i;
+                        mr.instance = m.instance;
 
                         transmitMessage(mr, m.origin);
 
                         // System.out.println(n_i+" 2Sent CHECKPOINT_RESP to "+m.origin);
 
-                        sending.release();
+                        unfreeze();
 
                     break;
 
@@ -966,26 +3811,26 @@ class Protocol implements Runnable{
                         // System.out.println(n_i+" Processing RECOVERY from "+m.origin);
 
                         // Lock the sending semaphore to prevent other threads from sending
-                        try {
-                            sending.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                        freeze();
+
+                        // The sender has rolled back
+                        peerRecovering(m);
 
                         // Determine if we need to rollback
                         Boolean recovering = false;
                         if((llr[m.origin] > m.lls[n_i])) {
                             // Rollback
                             recovering = true;
-                            recoveryHandler(m.origin);
+                            recoveryHandler(m.origin, m.instance);
                         } else {
-                            System.out.println(n_i+" Not Rolling back");
+                            trace(TraceEvent.NOT_ROLLING_BACK, m.origin, m.instance, -1);
                         }
 
                         // Send the RECOVERY_RESP response
                         Message mt = new Message();
                         mt.type = MessageType.RECOVERY_RESP;
                         mt.origin = n_i;
+                        mt.instance = m.instance;
 
                         transmitMessage(mt, m.origin);
 
@@ -993,65 +3838,88 @@ class Protocol implements Runnable{
                             // Wait for vector clock message from initiator
                             while(true) {
 
-                                // Process messages in the received queue
-                                if(receiveQueue.peek() != null) {
-                                    Message mp = receiveQueue.remove();
-                                    if(mp.type == MessageType.RECOVERY) { 
-                                        // ALRIGHT
+                                // Block until the next message arrives
+                                Message mp = takeQueue(MessageType.VECTOR_CLOCK);
+                                if(mp.type == MessageType.RECOVERY) { 
+                                    // ALRIGHT
+                                    peerRecovering(mp);
+
+                                    // Send the RECOVERY response
+                                    Message mx = new Message();
+                                    mx.type = MessageType.RECOVERY_RESP;
+                                    mx.origin = n_i;
+                                    mx.instance = mp.instance;
+
+                                    transmitMessage(mx, mp.origin);
+                                    // System.out.println(n_i+" 0Sent RECOVERY_RESP to "+mp.origin);
 
-                                        // Send the RECOVERY response
-                                        Message mx = new Message();
-                                        mx.type = MessageType.RECOVERY_RESP;
-                                        mx.origin = n_i;
 
-                                        transmitMessage(mx, mp.origin);
-                                        // System.out.println(n_i+" 0Sent RECOVERY_RESP to "+mp.origin);
+                                } else if(mp.type == MessageType.VECTOR_CLOCK && mp.instance == m.instance && Options.treeGather) {
 
+                                    treeGatherHandler(mp);
+                                    break;
 
-                                    } else if(mp.type == MessageType.VECTOR_CLOCK) {
+                                } else if(mp.type == MessageType.VECTOR_CLOCK && mp.instance == m.instance) {
 
-                                        // Send a VECTOR_CLOCK_RESP
-                                        int dest = mp.origin;
-                                        mp.origin = n_i;
-                                        mp.clock = clock;
-                                        mp.type = MessageType.VECTOR_CLOCK_RESP;
+                                    // Send a VECTOR_CLOCK_RESP
+                                    int dest = mp.origin;
+                                    mp.origin = n_i;
+                                    mp.clock = clock.snapshot();
+                                    mp.type = MessageType.VECTOR_CLOCK_RESP;
 
-                                        transmitMessage(mp, dest);
+                                    transmitMessage(mp, dest);
 
-                                        break;
-                                    }
+                                    break;
+                                } else if(mp.type == MessageType.CHECKPOINT) {
+                                    // Answered once the recovery is over
+                                    receiveQueue.defer();
+                                } else if(mp.type != MessageType.SIMPLE || Options.messageLog) {
+                                    answerOrDefer(mp);
                                 }
                             }
+
+                            // Read the deferred messages again, they kept their place in the receive queue
+                            receiveQueue.resume();
                         }
                         
                         // Unfreeze
-                        sending.release(); 
+                        unfreeze();
 
                     break;
 
                     case VECTOR_CLOCK:
 
+                        if(Options.treeGather) {
+                            freeze();
+                            treeGatherHandler(m);
+                            unfreeze();
+                            break;
+                        }
+
                         // Send a VECTOR_CLOCK_RESP
                         int dest = m.origin;
                         m.origin = n_i;
-                        m.clock = clock;
+                        m.clock = clock.snapshot();
                         m.type = MessageType.VECTOR_CLOCK_RESP;
 
                         // Lock the sending semaphore to prevent other threads from sending
-                        try {
-                            sending.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                        freeze();
 
                         transmitMessage(m, dest);
 
-                        sending.release(); 
+                        unfreeze();
 
                     break;
 
                     case VECTOR_CLOCK_CHECK:
 
+                        if(Options.treeGather) {
+                            freeze();
+                            treeGatherHandler(m);
+                            unfreeze();
+                            break;
+                        }
+
                         // Send a VECTOR_CLOCK_RESP
                         dest = m.origin;
                         m.origin = n_i;
@@ -1059,15 +3927,11 @@ class Protocol implements Runnable{
                         m.type = MessageType.VECTOR_CLOCK_RESP;
 
                         // Lock the sending semaphore to prevent other threads from sending
-                        try {
-                            sending.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                        freeze();
 
                         transmitMessage(m, dest);
 
-                        sending.release(); 
+                        unfreeze();
 
                     break;
 
@@ -1087,8 +3951,367 @@ class Protocol implements Runnable{
             }
             if(allComplete) {
                 System.out.println("Protocol closing");
+                if(store != null) {
+                    System.out.println("Checkpoint log: "+store.stats());
+                }
+                System.out.println(n_i+" Rollbacks: "+rollbacks+", events undone: "+eventsUndone+
+                    ", sends kept: "+sendsKept+", messages replayed: "+messagesReplayed);
+                metrics.stop();
+                connections.close();
+                return;
+            }
+        }
+    }
+}
+
+/******************************************************************************/
+class Simulator {
+
+    // Run n nodes in one JVM over a SimNetwork
+    // n degree cr_n instDelay sendDelay messages
+    // or: config_file, for the topology and schedule of a config/*.txt file, hosts and ports are ignored
+
+    public static void main(String[] args) {
+        System.out.println("*** KooToueg simulator ***");
+
+        Config c;
+        if(args.length == 1) {
+            try {
+                c = Config.parse(args[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
                 return;
             }
+            System.out.println("config: "+args[0]);
+        } else {
+            c = random(args);
+        }
+
+        int n = c.n;
+        int[][] neighbors = c.neighbors;
+        String[] crList = c.crList;
+        int[] crNodes = c.crNodes;
+
+        System.out.println("n: "+n);
+        System.out.println("latency: "+Options.simLatency+" us, jitter: "+Options.simJitter+" us, loss: "+Options.simLoss);
+        System.out.println("crList: "+Arrays.toString(crList));
+        System.out.println("crNodes: "+Arrays.toString(crNodes));
+
+        SimNetwork net = new SimNetwork(n, Options.simLatency, Options.simJitter, Options.simLoss, Options.simSeed);
+
+        // Create every node before any of them can send
+        Protocol[] prots = new Protocol[n];
+        for(int i = 0; i < n; i++) {
+            prots[i] = new Protocol(n, i, neighbors[i], net.transport(), c.instDelay);
+            net.attach(i, prots[i]);
+        }
+
+        long start = System.nanoTime();
+
+        ArrayList<Future<?>> protocol_threads = new ArrayList<Future<?>>();
+        for(int i = 0; i < n; i++) {
+            protocol_threads.add(TaskRunner.start(prots[i], false));
+        }
+        for(int i = 0; i < n; i++) {
+            TaskRunner.start(new Application(c.sendDelay, i, neighbors[i], prots[i], c.messages), false);
+        }
+
+        // The network is up as soon as the threads are, no need to wait
+        prots[crNodes[0]].startCR(crList, crNodes);
+
+        // Wait for every node to finish
+        try {
+            for(int i = 0; i < n; i++) {
+                protocol_threads.get(i).get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        net.shutdown();
+
+        System.out.println("Simulation finished after "+(System.nanoTime() - start) / 1000000+" ms");
+        System.out.println("Network: "+net.stats());
+        System.out.println("Buffers: "+BufferPool.stats());
+    }
+
+    // Random graph and schedule from the command line
+    private static Config random(String[] args) {
+        Config c = new Config();
+        int n = Integer.parseInt(args[0]);
+        int degree = Integer.parseInt(args[1]);
+        int cr_n = Integer.parseInt(args[2]);
+        c.n = n;
+        c.cr_n = cr_n;
+        c.instDelay = Integer.parseInt(args[3]);
+        c.sendDelay = Integer.parseInt(args[4]);
+        c.messages = Integer.parseInt(args[5]);
+
+        System.out.println("degree: "+degree);
+
+        Random random = new Random(Options.simSeed);
+
+        // Ring so the graph is connected, then random chords up to the average degree
+        boolean[][] adj = new boolean[n][n];
+        int edges = 0;
+        for(int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            if(i != j && !adj[i][j]) {
+                adj[i][j] = adj[j][i] = true;
+                edges++;
+            }
+        }
+        int maxEdges = n * (n - 1) / 2;
+        while(edges < min(n * degree / 2, maxEdges)) {
+            int i = random.nextInt(n);
+            int j = random.nextInt(n);
+            if(i != j && !adj[i][j]) {
+                adj[i][j] = adj[j][i] = true;
+                edges++;
+            }
+        }
+
+        // Random checkpoint and recovery schedule
+        c.crList = new String[cr_n];
+        c.crNodes = new int[cr_n];
+        for(int i = 0; i < cr_n; i++) {
+            c.crList[i] = random.nextBoolean() ? "c" : "r";
+            c.crNodes[i] = random.nextInt(n);
+        }
+
+        c.neighbors = new int[n][];
+        for(int i = 0; i < n; i++) {
+            int count = 0;
+            for(int j = 0; j < n; j++) {
+                if(adj[i][j]) {
+                    count++;
+                }
+            }
+            c.neighbors[i] = new int[count];
+            count = 0;
+            for(int j = 0; j < n; j++) {
+                if(adj[i][j]) {
+                    c.neighbors[i][count++] = j;
+                }
+            }
+        }
+
+        return c;
+    }
+}
+
+/******************************************************************************/
+class Benchmark {
+
+    // Microbenchmarks for the protocol hot paths
+    // java Benchmark [n ...], default n = 5 50 500 2000
+
+    private static final long WARMUP = 500;     // msec
+    private static final long MEASURE = 1000;   // msec
+
+    // Results go here so the JIT cannot drop the work
+    static volatile long sink;
+
+    static abstract class Op {
+        abstract void run();
+    }
+
+    // Run op until the time is up, return nsec per call
+    private static double time(Op op, long msec) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + msec * 1000000L;
+        long now;
+        do {
+            for(int i = 0; i < 64; i++) {
+                op.run();
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while(now < end);
+
+        return (double)(now - start) / ops;
+    }
+
+    private static void bench(PrintStream out, String name, int n, Op op) {
+        time(op, WARMUP);
+        out.printf("%-20s n=%-6d %12.1f ns/op%n", name, n, time(op, MEASURE));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int[] sizes = {5, 50, 500, 2000};
+        if(args.length > 0) {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // The protocol prints on every checkpoint and rollback, keep the formatting cost but not the output
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        for(int s = 0; s < sizes.length; s++) {
+            final int n = sizes[s];
+            final Random random = new Random(n);
+
+            // Two nodes over a zero latency network, node 0 is measured
+            SimNetwork net = new SimNetwork(n, 0, 0, 0, n);
+            final Protocol p = new Protocol(n, 0, new int[] {1}, net.transport(), 0);
+            final Protocol q = new Protocol(n, 1, new int[] {0}, net.transport(), 0);
+            net.attach(0, p);
+            net.attach(1, q);
+
+            final Message m = new Message();
+            m.type = MessageType.SIMPLE;
+            m.origin = 0;
+            m.label = 1000;
+            m.clock = new int[n];
+            for(int i = 0; i < n; i++) {
+                m.clock[i] = random.nextInt(1 << 20);
+            }
+
+            bench(out, "serializeObject", n, new Op() {
+                void run() {
+                    ByteBuffer buf = p.serializeObject(m);
+                    sink += buf.remaining();
+                    BufferPool.give(buf);
+                }
+            });
+
+            final ByteBuffer encoded = p.serializeObject(m);
+            final ArrayList<Message> frame = new ArrayList<Message>();
+            bench(out, "decodeFrame", n, new Op() {
+                void run() {
+                    try {
+                        MessageCodec.decodeFrame(encoded.duplicate(), frame);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    sink += frame.size();
+                    frame.clear();
+                }
+            });
+
+            bench(out, "incrementClock", n, new Op() {
+                void run() {
+                    sink += p.incrementClock();
+                }
+            });
+
+            bench(out, "mergeClock", n, new Op() {
+                void run() {
+                    p.mergeClock(m.clock);
+                }
+            });
+
+            // Consistent state, every node knows the most about itself so the check scans everything
+            final int[][] clocks = new int[n][n];
+            for(int i = 0; i < n; i++) {
+                for(int j = 0; j < n; j++) {
+                    clocks[i][j] = random.nextInt(1000);
+                }
+                clocks[i][i] = 1000;
+            }
+            bench(out, "checkCGS", n, new Op() {
+                void run() {
+                    if(p.checkCGS(clocks)) {
+                        sink++;
+                    }
+                }
+            });
+
+            bench(out, "commitCheckpoint", n, new Op() {
+                void run() {
+                    p.commitCheckpoint();
+                }
+            });
+
+            bench(out, "rollback", n, new Op() {
+                void run() {
+                    p.rollback();
+                }
+            });
+
+            bench(out, "loopback", n, new Op() {
+                void run() {
+                    p.transmitMessage(m, 1);
+                    sink += q.takeQueue(null).label;
+                }
+            });
+
+            net.shutdown();
+        }
+
+        System.setOut(out);
+    }
+}
+
+/******************************************************************************/
+class TraceDecoder {
+
+    // Print the events in one or more trace files in time order
+    // java TraceDecoder trace_0.bin trace_1.bin ...
+
+    public static void main(String[] args) throws IOException {
+
+        TraceEvent[] events = TraceEvent.values();
+        ArrayList<long[]> records = new ArrayList<long[]>();
+
+        for(int f = 0; f < args.length; f++) {
+            RandomAccessFile file = new RandomAccessFile(args[f], "r");
+            ByteBuffer buf;
+            try {
+                buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+
+            if(buf.getInt(0) != Tracer.MAGIC || buf.getInt(4) != Tracer.VERSION) {
+                System.err.println(args[f]+": not a version "+Tracer.VERSION+" trace");
+                continue;
+            }
+
+            int node = buf.getInt(8);
+            int capacity = buf.getInt(12);
+            long epoch = buf.getLong(16) * 1000000L;
+            long start = buf.getLong(24);
+
+            for(int i = 0; i < capacity; i++) {
+                int off = Tracer.HEADER + i * Tracer.RECORD;
+                long seq = buf.getLong(off);
+                if(seq == 0) {
+                    continue;
+                }
+
+                // Wall clock nsec, node, sequence, event, origin, label, value
+                records.add(new long[] {epoch + buf.getLong(off + 8) - start, node, seq,
+                    buf.getInt(off + 16), buf.getInt(off + 20), buf.getInt(off + 24), buf.getInt(off + 28)});
+            }
+        }
+
+        Collections.sort(records, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                if(a[0] != b[0]) {
+                    return Long.compare(a[0], b[0]);
+                }
+                if(a[1] != b[1]) {
+                    return Long.compare(a[1], b[1]);
+                }
+                return Long.compare(a[2], b[2]);
+            }
+        });
+
+        for(int i = 0; i < records.size(); i++) {
+            long[] r = records.get(i);
+            String text = (r[3] >= 0 && r[3] < events.length) ?
+                events[(int)r[3]].format((int)r[1], (int)r[4], (int)r[5], (int)r[6]) : "Unknown event "+r[3];
+            System.out.println((r[0] / 1000)+" "+text);
         }
     }
 }
@@ -1101,6 +4324,15 @@ public class KooToueg {
 
         // parse the input arguments
         // n n_i cr_n instDelay sendDelay messages hostname[0] port[0] ... neighborSize n[0] ... c r ... 1 3 2 ...
+        // or: config_file n_i
+        if(args.length == 2) {
+            try {
+                args = Config.parse(args[0]).toArgs(Integer.parseInt(args[1]));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
 
         int n = Integer.parseInt(args[0]);
         int n_i = Integer.parseInt(args[1]);
@@ -1155,31 +4387,19 @@ public class KooToueg {
 
         // Start the protocol thread
         Protocol prot = new Protocol(n, n_i, neighbors, hostnames, ports, instDelay);
-        Thread protocol_thread = new Thread(prot);
-        protocol_thread.start();
+        Future<?> protocol_thread = TaskRunner.start(prot, false);
 
         // Start the server thread
-        Server server = new Server(prot, ports[n_i]);
-        Thread server_thread = new Thread(server);
-        server_thread.start();
+        Server server = new Server(prot, ports[n_i], MessageCodec.maxFrame(n, cr_n));
+        Future<?> server_thread = TaskRunner.start(server, false);
 
-        // Wait 5 secodns for the applications to start
-        try {
-            Thread.sleep(5000);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
+        // Wait until every node is up
+        prot.announce();
+        prot.awaitReady();
+        System.out.println("All nodes ready");
 
         // Start the  application thread
-        Thread app_thread = new Thread(new Application(sendDelay, n_i, neighbors, prot, messages));
-        app_thread.start();
-
-        // Wait 5 secodns for the applications to start
-        try {
-            Thread.sleep(5000);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
+        Future<?> app_thread = TaskRunner.start(new Application(sendDelay, n_i, neighbors, prot, messages), false);
 
         // If this node is first in line for CR, initiate it with the protocol class
         if(crNodes[0] == n_i) {
@@ -1188,10 +4408,10 @@ public class KooToueg {
 
         // Wait for all of the threads to exit
         try {
-            app_thread.join();
-            protocol_thread.join();
+            app_thread.get();
+            protocol_thread.get();
             server.closeServer();
-            server_thread.join();
+            server_thread.get();
         } catch (Exception e) {
             e.printStackTrace();
         }
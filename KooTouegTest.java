@@ -0,0 +1,898 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/******************************************************************************/
+class KooTouegTest {
+
+    // Unit tests for the pieces that run without SCTP, make test
+    // Each test throws on the first failed check, main reports every test and
+    // exits non zero if any failed
+
+    private static int passed;
+    private static int failed;
+
+    static abstract class Test {
+        abstract void run() throws Exception;
+    }
+
+    private static void check(Boolean ok, String what) {
+        if(!ok) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static void run(String name, Test t) {
+        try {
+            t.run();
+            passed++;
+            System.out.println("ok    "+name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL  "+name+": "+e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    // Expect an IOException whose message contains text
+    private static void checkThrows(Test t, String text) throws Exception {
+        try {
+            t.run();
+        } catch (IOException e) {
+            check(e.getMessage().contains(text), "expected \""+text+"\", got \""+e.getMessage()+"\"");
+            return;
+        }
+        throw new AssertionError("expected IOException \""+text+"\"");
+    }
+
+    /**************************************************************************/
+    // MessageCodec
+
+    private static final int[] EDGES = {0, 1, -1, 63, -64, 64, -65, 127, 128, 16383, 16384,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1};
+
+    private static Message full(MessageType type, int v) {
+        Message m = new Message();
+        m.type = type;
+        m.origin = 3;
+        m.label = v;
+        m.crIndex = 7;
+        m.instance = 6;
+        m.clock = EDGES.clone();
+        m.llr = new int[] {-1, v, 0};
+        m.lls = new int[] {v, -1};
+        m.crList = new String[] {"c", "r", "c"};
+        m.crNodes = new int[] {0, 4, 2};
+        m.clockDiff = new int[] {0, v, 4, -1};
+        m.clockDiag = new int[] {-1, 5, -1, v};
+        return m;
+    }
+
+    private static void checkSame(Message a, Message b) {
+        check(a.type == b.type, "type "+a.type+" != "+b.type);
+        check(a.origin == b.origin, a.type+" origin "+a.origin+" != "+b.origin);
+        check(a.label == b.label, a.type+" label "+a.label+" != "+b.label);
+        check(a.crIndex == b.crIndex, a.type+" crIndex");
+        check(a.instance == b.instance, a.type+" instance");
+        check(Arrays.equals(a.clock, b.clock), a.type+" clock "+Arrays.toString(b.clock));
+        check(Arrays.equals(a.llr, b.llr), a.type+" llr");
+        check(Arrays.equals(a.lls, b.lls), a.type+" lls");
+        check(Arrays.equals(a.crList, b.crList), a.type+" crList");
+        check(Arrays.equals(a.crNodes, b.crNodes), a.type+" crNodes");
+        check(Arrays.equals(a.clockDiff, b.clockDiff), a.type+" clockDiff");
+        check(Arrays.equals(a.clockDiag, b.clockDiag), a.type+" clockDiag");
+    }
+
+    private static ByteBuffer encode(Message m) {
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.maxSize(m));
+        MessageCodec.encode(m, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static Message roundTrip(Message m) throws IOException {
+        ArrayList<Message> out = new ArrayList<Message>();
+        MessageCodec.decodeFrame(encode(m), out);
+        check(out.size() == 1, "decoded "+out.size()+" messages");
+        return out.get(0);
+    }
+
+    static void codecEveryType() throws Exception {
+        MessageType[] types = MessageType.values();
+        for(int t = 0; t < types.length; t++) {
+            for(int i = 0; i < EDGES.length; i++) {
+                Message m = full(types[t], EDGES[i]);
+                checkSame(m, roundTrip(m));
+            }
+
+            // Every optional field absent
+            Message m = new Message();
+            m.type = types[t];
+            m.label = -1;
+            checkSame(m, roundTrip(m));
+        }
+    }
+
+    static void codecVarintEdges() throws Exception {
+        for(int i = 0; i < EDGES.length; i++) {
+            Message m = new Message();
+            m.type = MessageType.SIMPLE;
+            m.origin = EDGES[i];
+            m.crIndex = EDGES[i];
+            m.instance = EDGES[i];
+            m.label = EDGES[i];
+            m.clock = new int[] {EDGES[i]};
+            checkSame(m, roundTrip(m));
+        }
+
+        // Zigzag keeps small negative numbers as short as small positive ones
+        Message a = new Message();
+        a.type = MessageType.SIMPLE;
+        a.label = 0;
+        Message b = new Message();
+        b.type = MessageType.SIMPLE;
+        b.label = -1;
+        check(encode(a).remaining() == encode(b).remaining(), "-1 label longer than 0");
+        b.label = Integer.MIN_VALUE;
+        check(encode(b).remaining() == encode(a).remaining() + 4, "MIN_VALUE label is not 5 bytes");
+    }
+
+    static void codecClockDiffDiag() throws Exception {
+        // An empty diff is sent when nothing changed, it must not come back as null
+        Message m = new Message();
+        m.type = MessageType.SIMPLE;
+        m.clockDiff = new int[0];
+        m.clockDiag = new int[] {-1, -1, -1, -1, -1};
+        Message d = roundTrip(m);
+        check(d.clock == null, "clock appeared");
+        check(d.clockDiff != null && d.clockDiff.length == 0, "empty clockDiff lost");
+        checkSame(m, d);
+
+        m.clockDiff = new int[2000];
+        for(int i = 0; i < m.clockDiff.length; i += 2) {
+            m.clockDiff[i] = i / 2;
+            m.clockDiff[i + 1] = i * 1000;
+        }
+        checkSame(m, roundTrip(m));
+    }
+
+    static void codecBatch() throws Exception {
+        ArrayList<Message> batch = new ArrayList<Message>();
+        int size = MessageCodec.BATCH_HEADER;
+        for(int i = 0; i < 40; i++) {
+            Message m = full(MessageType.SIMPLE, i - 20);
+            m.origin = i;
+            batch.add(m);
+            size += MessageCodec.maxSize(m);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        MessageCodec.encodeBatch(batch, buf);
+        buf.flip();
+        check(MessageCodec.frameSize(buf, buf.remaining()) == buf.remaining(), "frameSize "+MessageCodec.frameSize(buf, buf.remaining()));
+
+        ArrayList<Message> out = new ArrayList<Message>();
+        MessageCodec.decodeFrame(buf, out);
+        check(out.size() == batch.size(), "decoded "+out.size()+" of "+batch.size());
+        for(int i = 0; i < batch.size(); i++) {
+            checkSame(batch.get(i), out.get(i));
+        }
+    }
+
+    static void codecMaxFrame() throws Exception {
+        // The largest message a node of 50 sends with 20 instances, every entry at its longest
+        int n = 50;
+        Message m = new Message();
+        m.type = MessageType.VECTOR_CLOCK_PARTIAL;
+        m.origin = Integer.MIN_VALUE;
+        m.label = Integer.MIN_VALUE;
+        m.crIndex = Integer.MIN_VALUE;
+        m.instance = Integer.MIN_VALUE;
+        m.clock = new int[n];
+        m.llr = new int[n];
+        m.lls = new int[n];
+        m.clockDiag = new int[n];
+        m.clockDiff = new int[2 * n];
+        m.crNodes = new int[20];
+        m.crList = new String[20];
+        Arrays.fill(m.clock, Integer.MIN_VALUE);
+        Arrays.fill(m.llr, Integer.MIN_VALUE);
+        Arrays.fill(m.lls, Integer.MIN_VALUE);
+        Arrays.fill(m.clockDiag, Integer.MIN_VALUE);
+        Arrays.fill(m.clockDiff, Integer.MIN_VALUE);
+        Arrays.fill(m.crNodes, Integer.MIN_VALUE);
+        Arrays.fill(m.crList, "r");
+        ByteBuffer buf = encode(m);
+        check(MessageCodec.frameSize(buf, MessageCodec.maxFrame(n, 20)) == buf.remaining(), "largest message rejected");
+
+        // A full batch of small messages
+        check(MessageCodec.maxFrame(2, 1) >= MessageCodec.MAX_BATCH, "maxFrame below a batch");
+    }
+
+    static void codecErrors() throws Exception {
+        final ByteBuffer buf = encode(full(MessageType.CHECKPOINT, 9));
+
+        final ByteBuffer shortBuf = buf.duplicate();
+        shortBuf.limit(shortBuf.limit() - 1);
+        checkThrows(new Test() {
+            void run() throws Exception {
+                MessageCodec.decodeFrame(shortBuf, new ArrayList<Message>());
+            }
+        }, "bytes received");
+
+        final ByteBuffer badVersion = ByteBuffer.allocate(buf.remaining());
+        badVersion.put(buf.duplicate());
+        badVersion.put(0, (byte)(MessageCodec.VERSION + 1));
+        badVersion.flip();
+        checkThrows(new Test() {
+            void run() throws Exception {
+                MessageCodec.decodeFrame(badVersion, new ArrayList<Message>());
+            }
+        }, "version");
+
+        final ByteBuffer badType = ByteBuffer.allocate(buf.remaining());
+        badType.put(buf.duplicate());
+        badType.put(MessageCodec.HEADER, (byte)MessageType.values().length);
+        badType.flip();
+        checkThrows(new Test() {
+            void run() throws Exception {
+                MessageCodec.decodeFrame(badType, new ArrayList<Message>());
+            }
+        }, "Unknown message type");
+
+        // Length says there is more than the body holds
+        final ByteBuffer truncated = ByteBuffer.allocate(MessageCodec.HEADER + 2);
+        truncated.put((byte)MessageCodec.VERSION);
+        truncated.putInt(2);
+        truncated.put((byte)MessageType.SIMPLE.ordinal());
+        truncated.put((byte)0x80);
+        truncated.flip();
+        checkThrows(new Test() {
+            void run() throws Exception {
+                MessageCodec.decodeFrame(truncated, new ArrayList<Message>());
+            }
+        }, "Truncated");
+
+        // Counts read from the wire are checked before anything is allocated
+        byte[] negative = {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F};
+        byte[] huge = {(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0x07};
+        byte[][] counts = {negative, huge};
+        for(int c = 0; c < counts.length; c++) {
+            // SIMPLE, origin, label, crIndex, instance, flags, then the count
+            checkBadLength(raw(new byte[] {0, 0, 0, 0, 0, 0x01}, counts[c]));      // clock
+            checkBadLength(raw(new byte[] {0, 0, 0, 0, 0, 0x20}, counts[c]));      // clockDiff
+            checkBadLength(raw(new byte[] {0, 0, 0, 0, 0, 0x08}, counts[c]));      // crList
+            checkBadLength(raw(new byte[] {0, 0, 0, 0, 0, 0x08, 1}, counts[c]));   // a crList string
+            checkBadLength(raw(new byte[] {0x7F}, counts[c]));                     // batch count
+        }
+
+        // A count that would fit in memory but not in the frame
+        checkBadLength(raw(new byte[] {0, 0, 0, 0, 0, 0x01, 4, 1, 1}, new byte[0]));
+    }
+
+    // A frame holding body then tail
+    private static ByteBuffer raw(byte[] body, byte[] tail) {
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.HEADER + body.length + tail.length);
+        buf.put((byte)MessageCodec.VERSION);
+        buf.putInt(body.length + tail.length);
+        buf.put(body);
+        buf.put(tail);
+        buf.flip();
+        return buf;
+    }
+
+    private static void checkBadLength(final ByteBuffer frame) throws Exception {
+        checkThrows(new Test() {
+            void run() throws Exception {
+                MessageCodec.decodeFrame(frame, new ArrayList<Message>());
+            }
+        }, "Bad array length");
+    }
+
+    /**************************************************************************/
+    // VectorClock
+
+    static void clockCapture() throws Exception {
+        VectorClock clock = new VectorClock(4, 1);
+        clock.increment();
+        clock.merge(new int[] {3, 0, 2, 0});
+
+        // A capture keeps its values while the clock moves on
+        int[] cp = clock.capture();
+        check(Arrays.equals(cp, new int[] {3, 1, 2, 0}), "captured "+Arrays.toString(cp));
+        clock.increment();
+        clock.mergeDiff(new int[] {3, 7});
+        check(Arrays.equals(cp, new int[] {3, 1, 2, 0}), "capture changed to "+Arrays.toString(cp));
+        check(Arrays.equals(clock.snapshot(), new int[] {3, 2, 2, 7}), "clock "+Arrays.toString(clock.snapshot()));
+
+        // Captured twice with nothing in between, then rolled back to an older checkpoint
+        int[] second = clock.capture();
+        int[] third = clock.capture();
+        check(second == third, "capture copied an unchanged clock");
+        clock.reset(cp);
+        check(Arrays.equals(second, new int[] {3, 2, 2, 7}), "reset wrote a capture");
+        check(Arrays.equals(clock.snapshot(), cp), "reset to "+Arrays.toString(clock.snapshot()));
+    }
+
+    static void clockCaptureConcurrent() throws Exception {
+        final int n = 64;
+        final VectorClock clock = new VectorClock(n, 0);
+        final int rounds = 2000;
+
+        // A sender bumps our entry while the merges raise the others, a capture is taken
+        // between rounds while neither runs, as under the freeze
+        for(int r = 1; r <= rounds; r++) {
+            final int round = r;
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    clock.increment();
+                }
+            });
+            sender.start();
+            int[] merged = new int[n];
+            Arrays.fill(merged, round);
+            merged[0] = 0;
+            clock.merge(merged);
+            sender.join();
+
+            int[] cp = clock.capture();
+            check(cp[0] == round && cp[n - 1] == round, "round "+round+" captured "+cp[0]+" "+cp[n - 1]);
+        }
+        check(clock.get(0) == rounds, "lost increments, "+clock.get(0));
+    }
+
+    /**************************************************************************/
+    // ReceiveRing
+
+    private static Message labeled(int label) {
+        Message m = new Message();
+        m.type = MessageType.SIMPLE;
+        m.label = label;
+        return m;
+    }
+
+    static void ringWraparound() throws Exception {
+        ReceiveRing ring = new ReceiveRing(4);
+        int label = 0;
+        int expect = 0;
+
+        // Laps of every length up to a full ring
+        for(int lap = 0; lap < 100; lap++) {
+            for(int i = 0; i <= lap % 4; i++) {
+                ring.put(labeled(label++));
+            }
+            Message m;
+            while((m = ring.poll()) != null) {
+                check(m.label == expect, "got "+m.label+" expected "+expect);
+                expect++;
+            }
+        }
+        check(expect == label, "lost messages, "+expect+" of "+label);
+        check(ring.size() == 0, "size "+ring.size()+" after draining");
+        check(ring.poll(1) == null, "message from an empty ring");
+    }
+
+    static void ringProducers() throws Exception {
+        final ReceiveRing ring = new ReceiveRing(8);
+        final int producers = 4;
+        final int each = 20000;
+
+        Thread[] threads = new Thread[producers];
+        for(int t = 0; t < producers; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < each; i++) {
+                        Message m = labeled(i);
+                        m.origin = id;
+                        ring.put(m);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        // Each producer's messages arrive in the order it put them
+        int[] next = new int[producers];
+        for(int i = 0; i < producers * each; i++) {
+            Message m = ring.poll(5000);
+            check(m != null, "ring stalled after "+i+" messages");
+            check(m.label == next[m.origin], "producer "+m.origin+" sent "+next[m.origin]+" got "+m.label);
+            next[m.origin]++;
+        }
+        for(int t = 0; t < producers; t++) {
+            threads[t].join();
+        }
+        check(ring.poll() == null, "extra message");
+    }
+
+    static void ringDeferResume() throws Exception {
+        ReceiveRing ring = new ReceiveRing(16);
+        for(int i = 0; i < 6; i++) {
+            ring.put(labeled(i));
+        }
+
+        // Defer the even ones
+        for(int i = 0; i < 6; i++) {
+            Message m = ring.poll();
+            check(m.label == i, "got "+m.label+" expected "+i);
+            if(i % 2 == 0) {
+                ring.defer();
+            }
+        }
+        check(ring.poll() == null, "deferred message came back before resume");
+
+        ring.put(labeled(6));
+        ring.resume();
+
+        // Deferred messages keep their place ahead of newer ones
+        int[] expect = {0, 2, 4, 6};
+        for(int i = 0; i < expect.length; i++) {
+            Message m = ring.poll();
+            check(m != null && m.label == expect[i], "got "+(m == null ? null : m.label)+" expected "+expect[i]);
+        }
+        check(ring.poll() == null, "extra message");
+
+        ring.resume();
+        check(ring.poll() == null, "handled message came back");
+        check(ring.size() == 0, "size "+ring.size());
+    }
+
+    static void ringSpill() throws Exception {
+        ReceiveRing ring = new ReceiveRing(8);
+
+        // Defer more than half the ring, they move out so producers never block
+        for(int i = 0; i < 5; i++) {
+            ring.put(labeled(i));
+            check(ring.poll().label == i, "deferred order");
+            ring.defer();
+        }
+        for(int i = 5; i < 5 + 20; i++) {
+            ring.put(labeled(i));
+            Message m = ring.poll();
+            check(m.label == i, "got "+m.label+" expected "+i);
+        }
+
+        ring.put(labeled(25));
+        ring.resume();
+        for(int i = 0; i < 5; i++) {
+            Message m = ring.poll();
+            check(m.label == i, "spilled got "+m.label+" expected "+i);
+            if(i == 2) {
+                ring.defer();
+            }
+        }
+        check(ring.poll().label == 25, "newer message after the spilled ones");
+        check(ring.poll() == null, "extra message");
+
+        // Deferred again from the spill, comes back once more
+        ring.resume();
+        check(ring.poll().label == 2, "spilled message deferred twice");
+        check(ring.poll() == null, "extra message after resume");
+    }
+
+    /**************************************************************************/
+    // CheckpointStore
+
+    private static Checkpoint checkpoint(int n) {
+        Checkpoint cp = new Checkpoint();
+        cp.clock = new int[n];
+        cp.llr = new int[n];
+        cp.fls = new int[n];
+        cp.lls = new int[n];
+        return cp;
+    }
+
+    private static Checkpoint copy(Checkpoint cp) {
+        Checkpoint c = new Checkpoint();
+        c.label = cp.label;
+        c.clock = cp.clock.clone();
+        c.llr = cp.llr.clone();
+        c.fls = cp.fls.clone();
+        c.lls = cp.lls.clone();
+        return c;
+    }
+
+    private static void checkSame(Checkpoint a, Checkpoint b) {
+        check(a.label == b.label, "label "+a.label+" != "+b.label);
+        check(Arrays.equals(a.clock, b.clock), "clock "+Arrays.toString(a.clock)+" != "+Arrays.toString(b.clock));
+        check(Arrays.equals(a.llr, b.llr), "llr");
+        check(Arrays.equals(a.fls, b.fls), "fls");
+        check(Arrays.equals(a.lls, b.lls), "lls");
+    }
+
+    private static Checkpoint load(File dir, int n) throws IOException {
+        CheckpointStore store = new CheckpointStore(dir.getPath(), 0, n, "never", 4);
+        Checkpoint cp = checkpoint(n);
+        return store.load(cp) ? cp : null;
+    }
+
+    // Next checkpoint changes a few entries, so most records are deltas
+    private static void step(Checkpoint cp, int k) {
+        cp.label = k;
+        cp.clock[k % cp.clock.length] += k;
+        cp.llr[(k * 3) % cp.llr.length] = k;
+        if(k % 5 == 0) {
+            cp.fls[k % cp.fls.length] = -1;
+            cp.lls[0] = k;
+        }
+    }
+
+    static void storeDeltaReplay() throws Exception {
+        File dir = Files.createTempDirectory("kt_store").toFile();
+        final int n = 6;
+        check(load(dir, n) == null, "checkpoint in a new log");
+
+        CheckpointStore store = new CheckpointStore(dir.getPath(), 0, n, "commit", 4);
+        check(!store.load(checkpoint(n)), "checkpoint in a new log");
+
+        Checkpoint cp = checkpoint(n);
+        Arrays.fill(cp.llr, -1);
+        for(int k = 1; k <= 30; k++) {
+            step(cp, k);
+            store.append(cp);
+
+            // Reopen every time, replaying from the last full record through the deltas
+            Checkpoint got = load(dir, n);
+            check(got != null, "nothing loaded after "+k+" commits");
+            checkSame(cp, got);
+        }
+        // stats() starts "<full> full and <delta> delta records"
+        String[] stats = store.stats().split(" ");
+        check(Integer.parseInt(stats[0]) > 1 && Integer.parseInt(stats[3]) > Integer.parseInt(stats[0]), store.stats());
+    }
+
+    static void storeReopenAppend() throws Exception {
+        File dir = Files.createTempDirectory("kt_store").toFile();
+        final int n = 3;
+        Checkpoint cp = checkpoint(n);
+
+        CheckpointStore store = new CheckpointStore(dir.getPath(), 0, n, "commit", 2);
+        for(int k = 1; k <= 5; k++) {
+            step(cp, k);
+            store.append(cp);
+        }
+
+        // A restarted node loads and keeps appending to the same log
+        store = new CheckpointStore(dir.getPath(), 0, n, "commit", 2);
+        Checkpoint got = checkpoint(n);
+        check(store.load(got), "nothing loaded");
+        checkSame(cp, got);
+        for(int k = 6; k <= 9; k++) {
+            step(cp, k);
+            store.append(cp);
+        }
+        checkSame(cp, load(dir, n));
+    }
+
+    // Offsets of each record in the log, read with the documented layout
+    private static ArrayList<Integer> records(File log) throws IOException {
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        RandomAccessFile f = new RandomAccessFile(log, "r");
+        try {
+            int pos = 0;
+            while(true) {
+                f.seek(pos);
+                int length = f.readInt();
+                if(length <= 0) {
+                    break;
+                }
+                offsets.add(pos);
+                pos += 8 + length;
+            }
+        } finally {
+            f.close();
+        }
+        return offsets;
+    }
+
+    static void storeTornTail() throws Exception {
+        File dir = Files.createTempDirectory("kt_store").toFile();
+        final int n = 4;
+        Checkpoint cp = checkpoint(n);
+        ArrayList<Checkpoint> history = new ArrayList<Checkpoint>();
+
+        CheckpointStore store = new CheckpointStore(dir.getPath(), 0, n, "commit", 4);
+        for(int k = 1; k <= 7; k++) {
+            step(cp, k);
+            store.append(cp);
+            history.add(copy(cp));
+        }
+
+        File log = new File(dir, "checkpoint_0.log");
+        ArrayList<Integer> offsets = records(log);
+        check(offsets.size() == 7, offsets.size()+" records in the log");
+
+        // Flip a payload byte of the last record, its CRC no longer matches
+        RandomAccessFile f = new RandomAccessFile(log, "rw");
+        int last = offsets.get(6);
+        f.seek(last + 12);
+        int b = f.read();
+        f.seek(last + 12);
+        f.write(b ^ 0x40);
+        f.close();
+
+        checkSame(history.get(5), load(dir, n));
+
+        // The torn record is cut off, the next commit takes its place
+        store = new CheckpointStore(dir.getPath(), 0, n, "commit", 4);
+        check(store.load(checkpoint(n)), "nothing loaded");
+        step(cp, 8);
+        store.append(cp);
+        checkSame(cp, load(dir, n));
+        check(records(log).size() == 7, records(log).size()+" records after the torn one was replaced");
+
+        // A torn full record drops back to the one before it
+        f = new RandomAccessFile(log, "rw");
+        f.seek(12);
+        b = f.read();
+        f.seek(12);
+        f.write(b ^ 0x01);
+        f.close();
+        check(load(dir, n) == null, "checkpoint loaded past a torn first record");
+    }
+
+    /**************************************************************************/
+    // Config
+
+    private static String write(String text) throws IOException {
+        File file = File.createTempFile("kt_config", ".txt");
+        file.deleteOnExit();
+        FileWriter w = new FileWriter(file);
+        w.write(text);
+        w.close();
+        return file.getPath();
+    }
+
+    static void configParse() throws Exception {
+        Config c = Config.parse(write(
+            "# two nodes\n"+
+            "2 3\n"+
+            "  100 20 # header spans lines\n"+
+            "50\n"+
+            "0 dc01 1234\n"+
+            "1 dc02 1235\n"+
+            "0 1\n"+
+            "1 0\n"+
+            "(c,1)\n"+
+            "(r,0)\n"+
+            "(c,0)\n"));
+        check(c.n == 2 && c.cr_n == 3 && c.instDelay == 100 && c.sendDelay == 20 && c.messages == 50, "header");
+        check(c.hosts[1].equals("dc02") && c.ports[1] == 1235, "hosts");
+        check(Arrays.equals(c.neighbors[0], new int[] {1}), "neighbors");
+        check(Arrays.equals(c.crList, new String[] {"c", "r", "c"}), "crList "+Arrays.toString(c.crList));
+        check(Arrays.equals(c.crNodes, new int[] {1, 0, 0}), "crNodes");
+        check(Arrays.equals(c.toArgs(1), new String[] {"2", "1", "3", "100", "20", "50",
+            "dc01", "1234", "dc02", "1235", "1", "0", "c", "r", "c", "1", "0", "0"}), "toArgs");
+
+        Config given = Config.parse("config/given.txt");
+        check(given.n == 5 && given.cr_n == 10, "config/given.txt");
+    }
+
+    static void configErrors() throws Exception {
+        final String empty = write("# nothing here\n\n");
+        checkThrows(new Test() {
+            void run() throws Exception {
+                Config.parse(empty);
+            }
+        }, "missing header");
+
+        final String header = write("2 1 100 20\n");
+        checkThrows(new Test() {
+            void run() throws Exception {
+                Config.parse(header);
+            }
+        }, "missing header");
+
+        final String missing = write("2 1 100 20 50\n0 dc01 1234\n1 dc02 1235\n0 1\n1 0\n");
+        checkThrows(new Test() {
+            void run() throws Exception {
+                Config.parse(missing);
+            }
+        }, "expected 2 nodes, 2 neighbor lists and 1 instances");
+
+        final String notNumber = write("2 x 100 20 50\n");
+        try {
+            Config.parse(notNumber);
+            throw new AssertionError("parsed a header that is not a number");
+        } catch (NumberFormatException e) {
+        }
+
+        checkThrows(new Test() {
+            void run() throws Exception {
+                Config.parse("config/no_such_file.txt");
+            }
+        }, "no_such_file");
+    }
+
+    /**************************************************************************/
+    // ServerHandler
+
+    private static ByteBuffer frame(ArrayList<Message> batch) {
+        int size = MessageCodec.BATCH_HEADER;
+        for(int i = 0; i < batch.size(); i++) {
+            size += MessageCodec.maxSize(batch.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        MessageCodec.encodeBatch(batch, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer piece(ByteBuffer frame, int from, int to) {
+        ByteBuffer b = frame.duplicate();
+        b.position(from);
+        b.limit(to);
+        return b;
+    }
+
+    static void frameReassembly() throws Exception {
+        SimNetwork net = new SimNetwork(2, 0, 0, 0, 1);
+        Protocol p = new Protocol(2, 0, new int[] {1}, net.transport(), 0);
+        final ServerHandler h = new ServerHandler(p, null, 1 << 20);
+
+        ArrayList<Message> a = new ArrayList<Message>();
+        ArrayList<Message> b = new ArrayList<Message>();
+        for(int i = 0; i < 30; i++) {
+            a.add(full(MessageType.SIMPLE, i));
+            b.add(full(MessageType.CHECKPOINT, -i));
+        }
+        ByteBuffer fa = frame(a);
+        ByteBuffer fb = frame(b);
+
+        // Whole frame in one receive
+        h.receive(fa.duplicate(), 0, true);
+        for(int i = 0; i < a.size(); i++) {
+            checkSame(a.get(i), p.takeQueue(null));
+        }
+
+        // Two frames cut into pieces, interleaved on two streams
+        int step = 7;
+        int ia = 0;
+        int ib = 0;
+        while(ia < fa.limit() || ib < fb.limit()) {
+            if(ia < fa.limit()) {
+                int to = Math.min(ia + step, fa.limit());
+                h.receive(piece(fa, ia, to), 0, to == fa.limit());
+                ia = to;
+            }
+            if(ib < fb.limit()) {
+                int to = Math.min(ib + step * 3, fb.limit());
+                h.receive(piece(fb, ib, to), 1, to == fb.limit());
+                ib = to;
+            }
+        }
+        check(p.queueDepth() >= a.size() + b.size(), "queued "+p.queueDepth());
+
+        // Completion order decides which frame is delivered first
+        int doneA = (fa.limit() + step - 1) / step;
+        int doneB = (fb.limit() + step * 3 - 1) / (step * 3);
+        ArrayList<Message> first = (doneB < doneA) ? b : a;
+        ArrayList<Message> second = (first == a) ? b : a;
+        for(int i = 0; i < first.size(); i++) {
+            checkSame(first.get(i), p.takeQueue(null));
+        }
+        for(int i = 0; i < second.size(); i++) {
+            checkSame(second.get(i), p.takeQueue(null));
+        }
+    }
+
+    static void frameErrors() throws Exception {
+        SimNetwork net = new SimNetwork(2, 0, 0, 0, 1);
+        Protocol p = new Protocol(2, 0, new int[] {1}, net.transport(), 0);
+        final int maxFrame = MessageCodec.maxFrame(2, 1);
+        final ServerHandler h = new ServerHandler(p, null, maxFrame);
+
+        ArrayList<Message> batch = new ArrayList<Message>();
+        batch.add(full(MessageType.SIMPLE, 1));
+        final ByteBuffer f = frame(batch);
+
+        // Lengths that would overflow or allocate more than any frame needs, from the header alone
+        int[] lengths = {Integer.MAX_VALUE, Integer.MAX_VALUE - MessageCodec.HEADER + 1, maxFrame - MessageCodec.HEADER + 1, -1};
+        for(int i = 0; i < lengths.length; i++) {
+            final ByteBuffer header = ByteBuffer.allocate(MessageCodec.HEADER);
+            header.put((byte)MessageCodec.VERSION);
+            header.putInt(lengths[i]);
+            header.flip();
+            checkThrows(new Test() {
+                void run() throws Exception {
+                    h.receive(header, 0, false);
+                }
+            }, "Bad frame length");
+            check(h.partial[0] == null, "buffer taken for length "+lengths[i]);
+        }
+
+        checkThrows(new Test() {
+            void run() throws Exception {
+                h.receive(f.duplicate(), Transport.STREAMS, true);
+            }
+        }, "unexpected stream");
+
+        checkThrows(new Test() {
+            void run() throws Exception {
+                h.receive(piece(f, 0, MessageCodec.HEADER - 1), 0, false);
+            }
+        }, "too short");
+
+        // More bytes than the header promised
+        h.receive(piece(f, 0, MessageCodec.HEADER), 1, false);
+        final ByteBuffer longer = ByteBuffer.allocate(f.limit());
+        checkThrows(new Test() {
+            void run() throws Exception {
+                h.receive(longer, 1, true);
+            }
+        }, "longer than its length");
+
+        // A closed association gives back the frames it was still receiving
+        h.receive(piece(f, 0, MessageCodec.HEADER), 0, false);
+        check(h.partial[0] != null && h.partial[1] != null, "frames in progress");
+        h.release();
+        check(h.partial[0] == null && h.partial[1] == null, "buffers kept after release");
+    }
+
+    /**************************************************************************/
+    public static void main(String[] args) {
+
+        run("codec round trip of every type", new Test() {
+            void run() throws Exception { codecEveryType(); }
+        });
+        run("codec varint and zigzag edges", new Test() {
+            void run() throws Exception { codecVarintEdges(); }
+        });
+        run("codec clockDiff and clockDiag", new Test() {
+            void run() throws Exception { codecClockDiffDiag(); }
+        });
+        run("codec batch", new Test() {
+            void run() throws Exception { codecBatch(); }
+        });
+        run("codec maxFrame", new Test() {
+            void run() throws Exception { codecMaxFrame(); }
+        });
+        run("codec errors", new Test() {
+            void run() throws Exception { codecErrors(); }
+        });
+        run("clock capture", new Test() {
+            void run() throws Exception { clockCapture(); }
+        });
+        run("clock capture with concurrent writers", new Test() {
+            void run() throws Exception { clockCaptureConcurrent(); }
+        });
+        run("ring wraparound", new Test() {
+            void run() throws Exception { ringWraparound(); }
+        });
+        run("ring concurrent producers", new Test() {
+            void run() throws Exception { ringProducers(); }
+        });
+        run("ring defer and resume", new Test() {
+            void run() throws Exception { ringDeferResume(); }
+        });
+        run("ring spill", new Test() {
+            void run() throws Exception { ringSpill(); }
+        });
+        run("store delta replay", new Test() {
+            void run() throws Exception { storeDeltaReplay(); }
+        });
+        run("store reopen and append", new Test() {
+            void run() throws Exception { storeReopenAppend(); }
+        });
+        run("store torn tail", new Test() {
+            void run() throws Exception { storeTornTail(); }
+        });
+        run("config parse", new Test() {
+            void run() throws Exception { configParse(); }
+        });
+        run("config errors", new Test() {
+            void run() throws Exception { configErrors(); }
+        });
+        run("frame reassembly", new Test() {
+            void run() throws Exception { frameReassembly(); }
+        });
+        run("frame errors", new Test() {
+            void run() throws Exception { frameErrors(); }
+        });
+
+        System.out.println(passed+" passed, "+failed+" failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}